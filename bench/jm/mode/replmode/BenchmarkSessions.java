@@ -0,0 +1,120 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import javax.swing.JTextArea;
+
+/**
+ * Synthetic REPL sessions for the benchmarks to work on.
+ *
+ * @author Joel Moniz
+ */
+public class BenchmarkSessions {
+
+  /**
+   * A handful of the sort of statements people type into the REPL Console
+   */
+  static final String[] STATEMENTS = {
+    "background(255);",
+    "fill(255, 0, 0);",
+    "ellipse(50, 50, 20, 20);",
+    "stroke(0,  0, 255);",
+    "for (int i = 0; i < 10; i++) {  line(i * 10, 0, i * 10, 100);}",
+    "rect(10, 10, 30, 30);",
+    "point(40,40);",
+    "noFill();",
+  };
+
+  /**
+   * @return The <code>i</code>th statement of a synthetic session
+   */
+  static String statement(int i) {
+    return STATEMENTS[i % STATEMENTS.length];
+  }
+
+  /**
+   * @param statements The number of statements in the session
+   * @param formatOnRun Whether the session's code is formatted on each run
+   * @return A command list that has had <code>statements</code> statements
+   * entered into it, right after an <code>init</code>
+   */
+  static CommandList commandList(int statements, boolean formatOnRun) {
+    CommandList list = new CommandList(null);
+    list.setFormatOnRun(formatOnRun);
+    list.init(200, 200);
+    for (int i = 0; i < statements; i++) {
+      list.addStatement(statement(i));
+    }
+    return list;
+  }
+
+  /**
+   * @param commands The number of commands in the history
+   * @return A command history that has had <code>commands</code> commands
+   * entered into it
+   */
+  static CommandHistory commandHistory(int commands) {
+    CommandHistory history = new CommandHistory();
+    for (int i = 0; i < commands; i++) {
+      history.insertCommand(statement(i));
+    }
+    return history;
+  }
+
+  /**
+   * @param lines The number of lines of output in the console
+   * @return A console with <code>lines</code> lines of earlier statements
+   * and output in it, followed by a prompt
+   */
+  static JTextArea console(int lines) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      if (i % 2 == 0) {
+        text.append(">> ").append(statement(i)).append('\n');
+      } else {
+        text.append("Error: The function \"foo\" does not exist.\n");
+      }
+    }
+    text.append(">> ");
+
+    JTextArea console = new JTextArea();
+    console.setText(text.toString());
+    // Some room to lay the text out in, as if the console were on screen
+    console.setSize(600, 400);
+    return console;
+  }
+
+  /**
+   * @return A prompt pane looking after <code>console</code>, with a
+   * statement being typed in at the prompt, and the caret at the very end
+   */
+  static CommandPromptPane promptPane(JTextArea console) {
+    CommandPromptPane promptPane = 
+        new CommandPromptPane(">> ", "...    ", null, console);
+    console.setNavigationFilter(promptPane);
+    console.setCaretPosition(console.getDocument().getLength());
+    console.replaceSelection(SketchCodeBenchmark.STATEMENT);
+    return promptPane;
+  }
+}
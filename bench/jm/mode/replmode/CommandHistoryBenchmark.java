@@ -0,0 +1,81 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures cycling through the {@link CommandHistory} with the up and down
+ * arrow keys, on histories of increasing length.
+ *
+ * @author Joel Moniz
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandHistoryBenchmark {
+
+  @Param({ "10", "100", "1000", "10000" })
+  int commands;
+
+  CommandHistory history;
+
+  @Setup
+  public void setup() {
+    history = BenchmarkSessions.commandHistory(commands);
+  }
+
+  /**
+   * One step up the history and back down again, from the middle of it
+   */
+  @Benchmark
+  public String cycle() {
+    history.getPreviousCommand("");
+    return history.getNextCommand("");
+  }
+
+  /**
+   * A fresh cycle, starting from the most recent command
+   */
+  @Benchmark
+  public String firstStep() {
+    history.resetCommandCycle();
+    return history.getPreviousCommand("");
+  }
+}
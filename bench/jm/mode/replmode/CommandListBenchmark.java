@@ -0,0 +1,81 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link CommandList} operations that run each time the user
+ * hits Enter, on sessions of increasing length. Each benchmark leaves the
+ * session the way it found it, so that the session length stays put.
+ *
+ * @author Joel Moniz
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandListBenchmark {
+
+  @Param({ "10", "100", "1000", "10000" })
+  int statements;
+
+  CommandList session;
+
+  @Setup
+  public void setup() {
+    session = BenchmarkSessions.commandList(statements, false);
+  }
+
+  @Benchmark
+  public boolean addStatement() {
+    boolean error = session.addStatement(SketchCodeBenchmark.STATEMENT);
+    session.removePreviousStatement();
+    return error;
+  }
+
+  @Benchmark
+  public int undoRedo() {
+    return session.undo(1) + session.redo(1);
+  }
+
+  @Benchmark
+  public String getREPLSketchCode() {
+    return session.getREPLSketchCode();
+  }
+}
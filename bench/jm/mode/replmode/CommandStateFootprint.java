@@ -0,0 +1,117 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.ArrayList;
+import java.util.Stack;
+
+/**
+ * Measures how much heap the command list's states take up, compared to
+ * the <code>ArrayList</code> and undo <code>Stack</code> that used to hold
+ * the statements. Run with the <code>bench-footprint</code> target.
+ * <p>
+ * Two things are measured, for sessions of increasing length:
+ * <ul>
+ * <li><code>current</code>: only the statements in the command list right
+ * now, with the last tenth of them undone</li>
+ * <li><code>every state</code>: every state the command list has been in,
+ * as an undo tree would keep them. With lists, that means a copy of the
+ * list for each state.</li>
+ * </ul>
+ * The statements themselves are shared by both, and left out.
+ *
+ * @author Joel Moniz
+ */
+public class CommandStateFootprint {
+
+  static final int[] SIZES = { 1000, 5000 };
+
+  static String[] statements;
+
+  public static void main(String[] args) {
+    System.out.println("kept          statements     lists (B)    states (B)"
+        + "   ratio");
+    for (int size : SIZES) {
+      statements = new String[size];
+      for (int i = 0; i < size; i++) {
+        statements[i] = "ellipse(" + i + ", " + i + ", 20, 20);";
+      }
+      report("current", size, false);
+      report("every state", size, true);
+    }
+  }
+
+  static void report(String kept, int size, boolean everyState) {
+    long lists = measure(size, everyState, false);
+    long states = measure(size, everyState, true);
+    System.out.println(String.format("%-12s %11d %13d %13d %7.1fx", kept, 
+                                     size, lists, states,
+                                     (double) lists / states));
+  }
+
+  /**
+   * @return The number of bytes of heap taken up by the command list's
+   * state(s) after <code>size</code> statements
+   */
+  static long measure(int size, boolean everyState, boolean asStates) {
+    HistoryFootprint.retained = null;
+    long before = HistoryFootprint.usedMemory();
+    int undone = size / 10;
+    if (asStates) {
+      ArrayList<CommandState> kept = new ArrayList<>();
+      CommandState state = new CommandState();
+      for (int i = 0; i < size; i++) {
+        state = state.add(statements[i]);
+        if (everyState) {
+          kept.add(state);
+        }
+      }
+      // The states undone are held on to, for a redo to move back to
+      for (int i = 0; i < undone; i++) {
+        kept.add(state);
+        state = state.getParent();
+      }
+      kept.add(state);
+      HistoryFootprint.retained = kept;
+    } else {
+      ArrayList<ArrayList<String>> kept = new ArrayList<>();
+      ArrayList<String> list = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        list.add(statements[i]);
+        if (everyState) {
+          kept.add(new ArrayList<>(list));
+        }
+      }
+      Stack<String> undoStack = new Stack<>();
+      for (int i = 0; i < undone; i++) {
+        undoStack.push(list.remove(list.size() - 1));
+      }
+      kept.add(list);
+      HistoryFootprint.retained = new Object[] { kept, undoStack };
+    }
+    long after = HistoryFootprint.usedMemory();
+    HistoryFootprint.retained = null;
+    return after - before;
+  }
+}
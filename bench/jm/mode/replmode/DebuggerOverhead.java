@@ -0,0 +1,314 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jdi.Bootstrap;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.Connector;
+import com.sun.jdi.connect.ListeningConnector;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.ExceptionRequest;
+
+/**
+ * Measures how much the debugger attached to the sketch VM slows the
+ * sketch down, by running a stand-in for a sketch (see {@link FrameLoop})
+ * in a VM of its own, and counting the frames it gets drawn:
+ * <ul>
+ * <li><code>none</code>: no debugger attached, as with
+ * <code>repl.debugger</code> set to false</li>
+ * <li><code>suspend-all</code>: a debugger attached, asking for every
+ * uncaught exception, with the whole VM suspended when one comes along,
+ * which is how things used to be done</li>
+ * <li><code>event-thread</code>: the same, but with only the thread that
+ * threw the exception suspended, which is how {@link REPLRunner} now asks
+ * for them by default</li>
+ * <li><code>filtered</code>: a debugger attached, asking for the uncaught
+ * exceptions thrown from the sketch only, with only the thread that threw
+ * it suspended (the way {@link REPLRunner} asks for them with
+ * <code>repl.debugger.exception_filter</code> set)</li>
+ * </ul>
+ * Each frame throws (and catches) a few exceptions, as sketches parsing
+ * input and the like tend to, since that's where a debugger listening for
+ * exceptions costs the most. JMH only measures time in the same VM, so this
+ * is run on its own, with the <code>bench-overhead</code> target.
+ * <p>
+ * Each debugger is run {@link #FORKS} times (or as many times as the first
+ * argument says), taking turns with the others so that anything else going
+ * on in the machine is spread over all of them, and the frame rates are
+ * given with their 95% confidence intervals. An overhead whose interval
+ * overlaps that of <code>none</code> is marked as noise.
+ *
+ * @author Joel Moniz
+ */
+public class DebuggerOverhead {
+
+  /**
+   * How long (in seconds) the frame loop runs for before frames are
+   * counted, and for how long they are counted
+   */
+  static final int WARMUP_SECONDS = 2;
+  static final int MEASURE_SECONDS = 5;
+
+  /**
+   * Exceptions thrown and caught on each frame, for each run
+   */
+  static final int[] THROWS_PER_FRAME = { 0, 10, 100 };
+
+  /**
+   * Times each debugger is run, unless the first argument says otherwise
+   */
+  static final int FORKS = 5;
+
+  static final String[] DEBUGGERS = {
+    "none", "suspend-all", "event-thread", "filtered" };
+
+  static final int[] SUSPEND_POLICIES = {
+    0, EventRequest.SUSPEND_ALL, EventRequest.SUSPEND_EVENT_THREAD,
+    EventRequest.SUSPEND_EVENT_THREAD };
+
+  /**
+   * Two-sided 95% quantiles of Student's t distribution, for 1 to 10
+   * degrees of freedom
+   */
+  static final double[] T_95 = { 
+    12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228 };
+
+  public static void main(String[] args) throws Exception {
+    int forks = (args.length > 0) ? Integer.parseInt(args[0]) : FORKS;
+    System.out.println("debugger      throws/frame   frames/s (95% CI)"
+        + "        overhead");
+    for (int throwsPerFrame : THROWS_PER_FRAME) {
+      double[][] fps = new double[DEBUGGERS.length][forks];
+      for (int fork = 0; fork < forks; fork++) {
+        for (int i = 0; i < DEBUGGERS.length; i++) {
+          fps[i][fork] = 
+              run(DEBUGGERS[i], throwsPerFrame, SUSPEND_POLICIES[i]);
+        }
+      }
+      for (int i = 0; i < DEBUGGERS.length; i++) {
+        report(DEBUGGERS[i], throwsPerFrame, fps[0], fps[i]);
+      }
+    }
+  }
+
+  static void report(String debugger, int throwsPerFrame,
+                     double[] none, double[] fps) {
+    double noneMean = mean(none);
+    double mean = mean(fps);
+    double error = confidence(fps);
+    boolean isNoise = 
+        Math.abs(noneMean - mean) <= confidence(none) + error;
+    System.out.println(String.format("%-13s %12d %10.1f +/- %-6.1f %8.1f%%%s",
+                                     debugger, throwsPerFrame, mean, error,
+                                     100 * (noneMean - mean) / noneMean,
+                                     (fps != none && isNoise) 
+                                         ? " (noise)" : ""));
+  }
+
+  static double mean(double[] values) {
+    double sum = 0;
+    for (double v : values) {
+      sum += v;
+    }
+    return sum / values.length;
+  }
+
+  /**
+   * @return Half the width of the 95% confidence interval of the mean of
+   * <code>values</code>
+   */
+  static double confidence(double[] values) {
+    int n = values.length;
+    if (n < 2) {
+      return Double.NaN;
+    }
+    double mean = mean(values);
+    double squares = 0;
+    for (double v : values) {
+      squares += (v - mean) * (v - mean);
+    }
+    double t = (n - 1 <= T_95.length) ? T_95[n - 2] : 1.96;
+    return t * Math.sqrt(squares / (n - 1) / n);
+  }
+
+  /**
+   * Runs the frame loop in a VM of its own.
+   * @param debugger Which debugger to attach (see above)
+   * @param throwsPerFrame Exceptions thrown and caught on each frame
+   * @param suspendPolicy Suspend policy for exceptions, if a debugger is
+   * attached
+   * @return The frames drawn per second
+   */
+  static double run(String debugger, int throwsPerFrame,
+                    int suspendPolicy) throws Exception {
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin"
+        + File.separator + "java");
+    command.add("-Djava.awt.headless=true");
+
+    ListeningConnector connector = null;
+    Map<String, Connector.Argument> arguments = null;
+    if (!debugger.equals("none")) {
+      connector = findListeningConnector();
+      arguments = connector.defaultArguments();
+      arguments.get("port").setValue("0");
+      String address = connector.startListening(arguments);
+      command.add("-agentlib:jdwp=transport=dt_socket,address=" + address
+          + ",server=n,suspend=y");
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(FrameLoop.class.getName());
+    command.add(String.valueOf(throwsPerFrame));
+
+    Process process = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    if (connector != null) {
+      try {
+        attach(connector.accept(arguments), debugger, suspendPolicy);
+      } finally {
+        connector.stopListening(arguments);
+      }
+    }
+
+    BufferedReader out = 
+        new BufferedReader(new InputStreamReader(process.getInputStream()));
+    String fps = out.readLine();
+    process.waitFor();
+    if (fps == null) {
+      throw new IOException("The frame loop didn't report back");
+    }
+    return Double.parseDouble(fps);
+  }
+
+  /**
+   * Asks the VM for uncaught exceptions the same way the sketch runner
+   * would, and keeps its events moving along on a thread of its own.
+   */
+  static void attach(final VirtualMachine vm, String debugger,
+                     int suspendPolicy) {
+    String[] filters = debugger.equals("filtered")
+        ? new String[] { FrameLoop.class.getName() } : new String[0];
+    ExceptionRequest request = REPLRunner.requestUncaughtExceptions(
+        vm.eventRequestManager(), filters, new String[0]);
+    if (request.suspendPolicy() != suspendPolicy) {
+      // A policy can only be changed while the request is disabled
+      request.disable();
+      request.setSuspendPolicy(suspendPolicy);
+      request.enable();
+    }
+
+    Thread events = new Thread(new Runnable() {
+      public void run() {
+        try {
+          boolean connected = true;
+          while (connected) {
+            EventSet eventSet = vm.eventQueue().remove();
+            for (Event event : eventSet) {
+              if (event instanceof VMDisconnectEvent) {
+                connected = false;
+              }
+            }
+            eventSet.resume();
+          }
+        } catch (Exception e) {
+          // The VM has gone, which is all that is being waited for
+        }
+      }
+    }, "Debugger Overhead Events");
+    events.setDaemon(true);
+    events.start();
+    vm.resume();
+  }
+
+  static ListeningConnector findListeningConnector() {
+    for (Connector connector : 
+         Bootstrap.virtualMachineManager().listeningConnectors()) {
+      if (connector.name().equals("com.sun.jdi.SocketListen")) {
+        return (ListeningConnector) connector;
+      }
+    }
+    throw new Error("No socket connector to listen with");
+  }
+
+  /**
+   * A stand-in for a sketch: draws a few shapes into an image on every
+   * frame, as fast as it can, and prints out the number of frames drawn
+   * per second once it is done.
+   */
+  public static class FrameLoop {
+
+    public static void main(String[] args) {
+      int throwsPerFrame = Integer.parseInt(args[0]);
+      BufferedImage image = 
+          new BufferedImage(400, 400, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = image.createGraphics();
+
+      long warmupEnd = System.nanoTime() + WARMUP_SECONDS * 1000000000L;
+      while (System.nanoTime() < warmupEnd) {
+        frame(g, 0, throwsPerFrame);
+      }
+      int frames = 0;
+      long start = System.nanoTime();
+      long end = start + MEASURE_SECONDS * 1000000000L;
+      while (System.nanoTime() < end) {
+        frame(g, frames++, throwsPerFrame);
+      }
+      g.dispose();
+      System.out.println(frames * 1e9 / (System.nanoTime() - start));
+    }
+
+    static int frame(Graphics2D g, int frame, int throwsPerFrame) {
+      g.setColor(Color.LIGHT_GRAY);
+      g.fillRect(0, 0, 400, 400);
+      g.setColor(Color.RED);
+      for (int i = 0; i < 20; i++) {
+        g.fillOval((frame + i * 17) % 380, (i * 31) % 380, 20, 20);
+      }
+      int parsed = 0;
+      for (int i = 0; i < throwsPerFrame; i++) {
+        try {
+          parsed += Integer.parseInt("not a number " + i);
+        } catch (NumberFormatException e) {
+          parsed--;
+        }
+      }
+      return parsed;
+    }
+  }
+}
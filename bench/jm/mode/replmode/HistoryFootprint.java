@@ -0,0 +1,116 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.ArrayList;
+
+/**
+ * Measures how much heap the command history takes up, compared to keeping
+ * every command entered as a <code>String</code> of its own, which is how
+ * things used to be done. JMH only measures time, so this is run on its
+ * own, with the <code>bench-footprint</code> target.
+ * <p>
+ * Two sessions are tried: one where the same few statements are entered
+ * over and over, and one where every fourth statement is one that hasn't
+ * been entered before.
+ *
+ * @author Joel Moniz
+ */
+public class HistoryFootprint {
+
+  static final int[] SIZES = { 1000, 10000, 100000 };
+
+  /**
+   * Whatever is being measured, kept reachable until it has been measured
+   */
+  static Object retained;
+
+  public static void main(String[] args) {
+    System.out.println("session     commands   strings (B)   history (B)"
+        + "   ratio");
+    for (int size : SIZES) {
+      report("repeats", size, false);
+    }
+    for (int size : SIZES) {
+      report("mixed", size, true);
+    }
+  }
+
+  static void report(String session, int commands, boolean mixed) {
+    long strings = measure(commands, mixed, false);
+    long history = measure(commands, mixed, true);
+    System.out.println(String.format("%-10s %9d %13d %13d %7.1fx", session,
+                                     commands, strings, history,
+                                     (double) strings / history));
+  }
+
+  /**
+   * @return The number of bytes of heap taken up by <code>commands</code>
+   * commands, either in a command history or as a list of strings
+   */
+  static long measure(int commands, boolean mixed, boolean asHistory) {
+    retained = null;
+    long before = usedMemory();
+    if (asHistory) {
+      CommandHistory history = new CommandHistory();
+      for (int i = 0; i < commands; i++) {
+        history.insertCommand(command(i, mixed));
+      }
+      retained = history;
+    } else {
+      ArrayList<String> strings = new ArrayList<>();
+      for (int i = 0; i < commands; i++) {
+        strings.add(command(i, mixed));
+      }
+      retained = strings;
+    }
+    long after = usedMemory();
+    retained = null;
+    return after - before;
+  }
+
+  /**
+   * @return The <code>i</code>th command of a session. Each one is a string
+   * of its own, just as it would be if it had been typed in.
+   */
+  static String command(int i, boolean mixed) {
+    if (mixed && i % 4 == 3) {
+      return "ellipse(" + i + ", " + (i * 7 % 200) + ", 20, 20);";
+    }
+    return new String(BenchmarkSessions.statement(i).toCharArray());
+  }
+
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
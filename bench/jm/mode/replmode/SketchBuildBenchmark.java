@@ -0,0 +1,145 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the time taken to evaluate a statement grows with the
+ * length of the session. Each statement has the whole sketch put together
+ * and compiled again (see {@link REPLEvaluator}), so this puts the
+ * sketch's code together, and compiles its <code>draw()</code> with
+ * <code>javac</code>, against a stand-in for <code>PApplet</code> with just
+ * the methods the session's statements call.
+ * <p>
+ * Processing's preprocessor (and its own compiler) can't be run outside
+ * the PDE, so this leaves out the preprocessing, and the compiler isn't the
+ * one the PDE uses. What it shows is how the cost of a full rebuild grows
+ * with the number of statements in the session, which is what the build
+ * cache can't do anything about for code it hasn't seen before.
+ *
+ * @author Joel Moniz
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SketchBuildBenchmark {
+
+  static final String STATEMENT = "ellipse(mouseX,mouseY,  20,20);";
+
+  /**
+   * Stand-in for <code>PApplet</code>, with the methods the statements of
+   * {@link BenchmarkSessions} call
+   */
+  static final String SKETCH_BASE = 
+      "class SketchBase {\n"
+    + "  int mouseX, mouseY;\n"
+    + "  void background(float... args) {}\n"
+    + "  void fill(float... args) {}\n"
+    + "  void noFill() {}\n"
+    + "  void stroke(float... args) {}\n"
+    + "  void ellipse(float... args) {}\n"
+    + "  void rect(float... args) {}\n"
+    + "  void line(float... args) {}\n"
+    + "  void point(float... args) {}\n"
+    + "  void replRestore(int undoCount, int w, int h, int version) {}\n"
+    + "}\n";
+
+  // The longest session's draw() is just within the 64K a method can take
+  @Param({ "10", "100", "1000" })
+  int statements;
+
+  CommandList session;
+
+  JavaCompiler compiler;
+
+  File outputFolder;
+
+  @Setup
+  public void setup() throws IOException {
+    session = BenchmarkSessions.commandList(statements, false);
+    compiler = ToolProvider.getSystemJavaCompiler();
+    outputFolder = Files.createTempDirectory("repl-bench").toFile();
+    outputFolder.deleteOnExit();
+  }
+
+  @Benchmark
+  public boolean rebuild() {
+    session.addStatement(STATEMENT);
+    String code = session.getREPLSketchCode();
+    session.removePreviousStatement();
+    return compile(code);
+  }
+
+  /**
+   * Compiles the <code>draw()</code> of <code>code</code>, as a method of a
+   * class extending the stand-in for <code>PApplet</code>
+   */
+  boolean compile(String code) {
+    String sketch = "class ReplSketch extends SketchBase {\n"
+        + code.substring(code.indexOf("void draw() {")) + "\n}\n";
+    return compiler.getTask(null, null, null,
+                            Arrays.asList("-d", outputFolder.getPath(),
+                                          "-proc:none"),
+                            null,
+                            Arrays.asList(source("SketchBase", SKETCH_BASE),
+                                          source("ReplSketch", sketch)))
+        .call();
+  }
+
+  static JavaFileObject source(String className, final String code) {
+    return new SimpleJavaFileObject(URI.create("string:///" + className
+                                               + ".java"),
+                                    JavaFileObject.Kind.SOURCE) {
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return code;
+      }
+    };
+  }
+}
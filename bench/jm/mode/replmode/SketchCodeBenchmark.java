@@ -0,0 +1,100 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ways the code of the REPL Console's sketch can be put
+ * together each time the user hits Enter, on sessions of increasing length:
+ * <ul>
+ * <li><code>rawCode</code>: statements go into the sketch as typed, and
+ * nothing is formatted (the default)</li>
+ * <li><code>formattedSegments</code>: each statement is formatted as it is
+ * entered (<code>repl.format_on_run</code>)</li>
+ * <li><code>formattedSketch</code>: the whole sketch is formatted on every
+ * run, which is how things used to be done</li>
+ * </ul>
+ *
+ * @author Joel Moniz
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SketchCodeBenchmark {
+
+  static final String STATEMENT = "ellipse(mouseX,mouseY,  20,20);";
+
+  @Param({ "10", "100", "1000", "10000" })
+  int statements;
+
+  CommandList rawSession;
+
+  CommandList formattedSession;
+
+  @Setup
+  public void setup() {
+    rawSession = BenchmarkSessions.commandList(statements, false);
+    formattedSession = BenchmarkSessions.commandList(statements, true);
+  }
+
+  @Benchmark
+  public String rawCode() {
+    rawSession.addStatement(STATEMENT);
+    String code = rawSession.getREPLSketchCode();
+    rawSession.removePreviousStatement();
+    return code;
+  }
+
+  @Benchmark
+  public String formattedSegments() {
+    formattedSession.addStatement(STATEMENT);
+    String code = formattedSession.getREPLSketchCode();
+    formattedSession.removePreviousStatement();
+    return code;
+  }
+
+  @Benchmark
+  public String formattedSketch() {
+    rawSession.addStatement(STATEMENT);
+    String code = rawSession.formatter.format(rawSession.getREPLSketchCode());
+    rawSession.removePreviousStatement();
+    return code;
+  }
+}
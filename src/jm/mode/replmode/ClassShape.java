@@ -0,0 +1,291 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The shape of a compiled class: its modifiers, superclass, interfaces,
+ * fields and methods, but none of the code inside them. The VM can only
+ * redefine a class that is already loaded (which is what the hot swapper
+ * does) if its shape stays exactly the same, so comparing the shapes of the
+ * freshly compiled class files against the ones already loaded tells up
+ * front whether a change can be hot swapped in, or whether the sketch VM has
+ * to be restarted.
+ * <p>
+ * Only as much of the class file as is needed for the shape is read: the
+ * constant pool, and the names, descriptors and modifiers of the members.
+ * Method bodies and other attributes are skipped over.
+ *
+ * @author Joel Moniz
+ */
+public class ClassShape {
+
+  static final int MAGIC = 0xCAFEBABE;
+
+  // Constant pool tags, from the JVM specification (section 4.4)
+  static final int CONSTANT_UTF8 = 1;
+  static final int CONSTANT_INTEGER = 3;
+  static final int CONSTANT_FLOAT = 4;
+  static final int CONSTANT_LONG = 5;
+  static final int CONSTANT_DOUBLE = 6;
+  static final int CONSTANT_CLASS = 7;
+  static final int CONSTANT_STRING = 8;
+  static final int CONSTANT_FIELDREF = 9;
+  static final int CONSTANT_METHODREF = 10;
+  static final int CONSTANT_INTERFACE_METHODREF = 11;
+  static final int CONSTANT_NAME_AND_TYPE = 12;
+  static final int CONSTANT_METHOD_HANDLE = 15;
+  static final int CONSTANT_METHOD_TYPE = 16;
+  static final int CONSTANT_DYNAMIC = 17;
+  static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  static final int CONSTANT_MODULE = 19;
+  static final int CONSTANT_PACKAGE = 20;
+
+  /**
+   * Name of the class, with '/'s separating the parts of the package
+   */
+  final String name;
+
+  /**
+   * Everything about the class the VM won't let change on a redefinition,
+   * written out one line per part: the modifiers, the superclass and
+   * interfaces, the fields (in the order they are declared, which the VM
+   * cares about) and the methods (in no particular order, which it
+   * doesn't).
+   */
+  final String shape;
+
+  private ClassShape(String name, String shape) {
+    this.name = name;
+    this.shape = shape;
+  }
+
+  /**
+   * @return The name of the class, with '/'s separating the parts of the
+   * package
+   */
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ClassShape && shape.equals(((ClassShape) o).shape);
+  }
+
+  @Override
+  public int hashCode() {
+    return shape.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return shape;
+  }
+
+  /**
+   * Reads the shape of a class from its class file.
+   * @param in The contents of the class file
+   * @return The shape of the class
+   * @throws IOException If the class file couldn't be read, or isn't a
+   * class file
+   */
+  public static ClassShape read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a class file");
+    }
+    data.readUnsignedShort(); // minor version
+    data.readUnsignedShort(); // major version
+
+    int poolCount = data.readUnsignedShort();
+    String[] utf8 = new String[poolCount];
+    int[] classNames = new int[poolCount];
+    for (int i = 1; i < poolCount; i++) {
+      int tag = data.readUnsignedByte();
+      switch (tag) {
+      case CONSTANT_UTF8:
+        utf8[i] = data.readUTF();
+        break;
+      case CONSTANT_CLASS:
+        classNames[i] = data.readUnsignedShort();
+        break;
+      case CONSTANT_STRING:
+      case CONSTANT_METHOD_TYPE:
+      case CONSTANT_MODULE:
+      case CONSTANT_PACKAGE:
+        data.skipBytes(2);
+        break;
+      case CONSTANT_METHOD_HANDLE:
+        data.skipBytes(3);
+        break;
+      case CONSTANT_INTEGER:
+      case CONSTANT_FLOAT:
+      case CONSTANT_FIELDREF:
+      case CONSTANT_METHODREF:
+      case CONSTANT_INTERFACE_METHODREF:
+      case CONSTANT_NAME_AND_TYPE:
+      case CONSTANT_DYNAMIC:
+      case CONSTANT_INVOKE_DYNAMIC:
+        data.skipBytes(4);
+        break;
+      case CONSTANT_LONG:
+      case CONSTANT_DOUBLE:
+        data.skipBytes(8);
+        i++; // these take up two entries in the pool
+        break;
+      default:
+        throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+
+    StringBuilder shape = new StringBuilder(256);
+    int access = data.readUnsignedShort();
+    String name = utf8[classNames[data.readUnsignedShort()]];
+    int superClass = data.readUnsignedShort();
+    shape.append("class ").append(access).append(' ').append(name);
+    if (superClass != 0) {
+      shape.append(" extends ").append(utf8[classNames[superClass]]);
+    }
+    int interfaceCount = data.readUnsignedShort();
+    for (int i = 0; i < interfaceCount; i++) {
+      shape.append(i == 0 ? " implements " : ", ");
+      shape.append(utf8[classNames[data.readUnsignedShort()]]);
+    }
+    shape.append('\n');
+
+    for (String field : readMembers(data, utf8)) {
+      shape.append("field ").append(field).append('\n');
+    }
+    List<String> methods = readMembers(data, utf8);
+    Collections.sort(methods);
+    for (String method : methods) {
+      shape.append("method ").append(method).append('\n');
+    }
+    // The class's own attributes make no difference to its shape
+    return new ClassShape(name, shape.toString());
+  }
+
+  /**
+   * Reads the fields or the methods of a class.
+   * @return The modifiers, name and descriptor of each member, in the order
+   * they appear in the class file
+   */
+  private static List<String> readMembers(DataInputStream data,
+                                          String[] utf8) throws IOException {
+    int count = data.readUnsignedShort();
+    List<String> members = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int access = data.readUnsignedShort();
+      String name = utf8[data.readUnsignedShort()];
+      String descriptor = utf8[data.readUnsignedShort()];
+      members.add(access + " " + name + " " + descriptor);
+      int attributeCount = data.readUnsignedShort();
+      for (int j = 0; j < attributeCount; j++) {
+        data.readUnsignedShort(); // name
+        skipFully(data, data.readInt() & 0xFFFFFFFFL);
+      }
+    }
+    return members;
+  }
+
+  private static void skipFully(DataInputStream data,
+                                long bytes) throws IOException {
+    while (bytes > 0) {
+      int skipped = data.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+      if (skipped <= 0) {
+        throw new IOException("Class file ends too soon");
+      }
+      bytes -= skipped;
+    }
+  }
+
+  /**
+   * Reads the shapes of all the classes in a folder (including those in
+   * sub-folders, for classes in a package).
+   * @param folder The folder holding the class files
+   * @return The shape of each class, by class name. Empty if the folder
+   * doesn't exist.
+   * @throws IOException If a class file couldn't be read
+   */
+  public static Map<String, ClassShape> readFolder(File folder)
+      throws IOException {
+    Map<String, ClassShape> shapes = new HashMap<>();
+    readFolder(folder, shapes);
+    return shapes;
+  }
+
+  private static void readFolder(File folder, Map<String, ClassShape> shapes)
+      throws IOException {
+    File[] files = folder.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        readFolder(file, shapes);
+      } else if (file.getName().endsWith(".class")) {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+          ClassShape shape = read(in);
+          shapes.put(shape.name, shape);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds a class whose shape has changed, and which so can't be
+   * redefined. Classes that are new, or that have gone, make no difference,
+   * since new classes are simply loaded, and classes that have gone are
+   * simply never used again.
+   * @param loaded The shapes of the classes that may already be loaded
+   * @param built The shapes of the freshly compiled classes
+   * @return The name of the first class found whose shape has changed, or
+   * null if all of them can be redefined
+   */
+  public static String findChangedClass(Map<String, ClassShape> loaded,
+                                        Map<String, ClassShape> built) {
+    for (ClassShape shape : built.values()) {
+      ClassShape before = loaded.get(shape.name);
+      if (before != null && !before.equals(shape)) {
+        return shape.name;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,254 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import processing.mode.java.AutoFormat;
+
+/**
+ * The code of the statements in the {@link CommandList}, kept as a list of
+ * segments (one per statement) on the end of a single buffer. Statements are
+ * only ever added to or taken off the end of the command list, so adding a
+ * segment costs no more than the length of the statement itself, taking one
+ * off is a matter of moving the end of the buffer back, and the code of all
+ * the statements together is always ready to go without having to be
+ * stitched (or formatted) together again.
+ * <p>
+ * Only the compiler ever reads the code that is run, so by default segments
+ * go into the buffer just as they were typed (indented so that they can go
+ * straight into the body of a method), and are only run through Processing's
+ * formatter when someone wants code a human will read, such as for
+ * <code>codify</code>. The formatted code of each segment is cached, so that
+ * is a one-off cost too. If <code>formatOnAdd</code> is set, segments are
+ * formatted as soon as they are added, and the buffer holds formatted code.
+ *
+ * @author Joel Moniz
+ */
+public class CodeSegmentList {
+
+  /**
+   * Indentation for code in the body of a method
+   */
+  static final String INDENT = "  ";
+
+  /**
+   * Processing's auto-formatter
+   */
+  AutoFormat formatter;
+
+  /**
+   * Whether segments are formatted as they are added, or only when formatted
+   * code is asked for
+   */
+  boolean formatOnAdd;
+
+  /**
+   * The code of each segment, as it is in the buffer
+   */
+  ArrayList<String> segments;
+
+  /**
+   * The formatted code of each segment, or null for segments which haven't
+   * had to be formatted yet
+   */
+  ArrayList<String> formattedSegments;
+
+  /**
+   * The code of all the segments, one after the other
+   */
+  StringBuilder code;
+
+  /**
+   * <code>codeEnds[i]</code> is the offset in <code>code</code> at which
+   * segment <code>i</code> ends
+   */
+  int[] codeEnds;
+
+  /**
+   * <code>lineEnds[i]</code> is the number of lines taken up by segments
+   * <code>0</code> to <code>i</code> together
+   */
+  int[] lineEnds;
+
+  public CodeSegmentList(AutoFormat formatter, boolean formatOnAdd) {
+    this.formatter = formatter;
+    this.formatOnAdd = formatOnAdd;
+    segments = new ArrayList<>();
+    formattedSegments = new ArrayList<>();
+    code = new StringBuilder();
+    codeEnds = new int[16];
+    lineEnds = new int[16];
+  }
+
+  /**
+   * Adds a segment to the end of the list.
+   * @param stmt The statement the segment is made up of
+   */
+  public void add(String stmt) {
+    String segment;
+    String formatted = null;
+    if (formatOnAdd) {
+      segment = formatted = indent(format(stmt));
+    } else {
+      segment = indent(trimEnd(stmt) + '\n');
+    }
+    int n = segments.size();
+    if (n == codeEnds.length) {
+      codeEnds = Arrays.copyOf(codeEnds, n * 2);
+      lineEnds = Arrays.copyOf(lineEnds, n * 2);
+    }
+    code.append(segment);
+    codeEnds[n] = code.length();
+    lineEnds[n] = (n == 0 ? 0 : lineEnds[n - 1]) + countLines(segment);
+    segments.add(segment);
+    formattedSegments.add(formatted);
+  }
+
+  /**
+   * Takes the last segment off the end of the list.
+   */
+  public void removeLast() {
+    int n = segments.size();
+    if (n == 0) {
+      return;
+    }
+    segments.remove(n - 1);
+    formattedSegments.remove(n - 1);
+    code.setLength(n == 1 ? 0 : codeEnds[n - 2]);
+  }
+
+  /**
+   * Empties the list.
+   */
+  public void clear() {
+    segments.clear();
+    formattedSegments.clear();
+    code.setLength(0);
+  }
+
+  /**
+   * @return The number of segments in the list
+   */
+  public int size() {
+    return segments.size();
+  }
+
+  /**
+   * @return The code of all the segments, one after the other. This is
+   * formatted only if <code>formatOnAdd</code> is set.
+   */
+  public CharSequence getCode() {
+    return code;
+  }
+
+  /**
+   * @return The formatted code of all the segments, one after the other.
+   * Only segments that haven't been formatted before are run through the
+   * formatter.
+   */
+  public String getFormattedCode() {
+    StringBuilder formattedCode = new StringBuilder(code.length() + 64);
+    for (int i = 0; i < segments.size(); i++) {
+      String formatted = formattedSegments.get(i);
+      if (formatted == null) {
+        formatted = indent(format(segments.get(i)));
+        formattedSegments.set(i, formatted);
+      }
+      formattedCode.append(formatted);
+    }
+    return formattedCode.toString();
+  }
+
+  /**
+   * @return The number of lines taken up by all the segments together
+   */
+  public int getLineCount() {
+    int n = segments.size();
+    return n == 0 ? 0 : lineEnds[n - 1];
+  }
+
+  /**
+   * Finds the segment that a line of code belongs to.
+   * @param line The line number, counting from 0 at the first line of the
+   * first segment
+   * @return The index of the segment, or -1 if the line is outside the
+   * segments
+   */
+  public int getSegmentAtLine(int line) {
+    int n = segments.size();
+    if (line < 0 || n == 0 || line >= lineEnds[n - 1]) {
+      return -1;
+    }
+    // Every segment takes up at least one line, so lineEnds is strictly
+    // increasing
+    int i = Arrays.binarySearch(lineEnds, 0, n, line + 1);
+    return (i < 0) ? -i - 1 : i;
+  }
+
+  /**
+   * @return <code>stmt</code>, formatted with Processing's formatter and
+   * ending in exactly one newline
+   */
+  private String format(String stmt) {
+    String formatted = formatter.format(stmt);
+    if (formatted == null) {
+      formatted = stmt;
+    }
+    return trimEnd(formatted) + '\n';
+  }
+
+  private static String trimEnd(String s) {
+    int end = s.length();
+    while (end > 0 && Character.isWhitespace(s.charAt(end - 1))) {
+      end--;
+    }
+    return s.substring(0, end);
+  }
+
+  private static String indent(String segment) {
+    StringBuilder indented = new StringBuilder(segment.length() + 16);
+    int start = 0;
+    while (start < segment.length()) {
+      int end = segment.indexOf('\n', start) + 1;
+      if (end > start + 1) {
+        indented.append(INDENT);
+      }
+      indented.append(segment, start, end);
+      start = end;
+    }
+    return indented.toString();
+  }
+
+  private static int countLines(String segment) {
+    int lines = 0;
+    for (int i = 0; i < segment.length(); i++) {
+      if (segment.charAt(i) == '\n') {
+        lines++;
+      }
+    }
+    return lines;
+  }
+}
@@ -23,10 +23,12 @@
  */
 package jm.mode.replmode;
 
-import java.util.ArrayList;
+import java.io.File;
 
 /**
  * Class to store the list of commands that the user has entered so far.
+ * The commands may be saved to a {@link CommandHistoryLog}, so that they
+ * are still there to cycle through the next time round.
  * 
  * @author Joel Moniz
  */
@@ -49,7 +51,13 @@ public class CommandHistory {
   /**
    * Store all the commands themselves.
    */
-  ArrayList<String> commandHistList;
+  CommandHistoryLog commandHistList;
+
+  /**
+   * Index used to search through the commands, built the first time the
+   * user searches
+   */
+  CommandHistoryIndex searchIndex;
 
   /**
    * Command user is currently entering
@@ -58,12 +66,24 @@ public class CommandHistory {
 
   public static final int UNDEFINED_COMMAND_STEP = -1;
 
+  /**
+   * Creates a command history that is only kept in memory
+   */
   public CommandHistory() {
+    this(null);
+  }
+
+  /**
+   * @param logFile The file the commands are saved to (and loaded from), or
+   * null to keep the commands in memory only
+   */
+  public CommandHistory(File logFile) {
     currentCycleCommand = UNDEFINED_COMMAND_STEP;
     previousClearLine = 0;
     currentCommand = "";
 
-    commandHistList = new ArrayList<>();
+    commandHistList = new CommandHistoryLog(logFile);
+    searchIndex = null;
   }
 
   /**
@@ -173,7 +193,15 @@ public class CommandHistory {
     resetCommandCycle();
 
     if (cmd != null && !cmd.isEmpty()) {
-      commandHistList.add(cmd);
+      int size = commandHistList.size();
+      if (!CommandHistoryLog.isIgnoringDuplicates() || size == 0
+          || !cmd.equals(commandHistList.get(size - 1))) {
+        commandHistList.add(cmd);
+        if (searchIndex != null) {
+          searchIndex.add(commandHistList.size() - 1
+              + commandHistList.getDroppedCount(), cmd);
+        }
+      }
     }
 
     if (cmd.equals(CommandList.CLEAR_COMMAND)) {
@@ -181,4 +209,61 @@ public class CommandHistory {
     }
   }
 
+  /**
+   * @return The number of commands in the history
+   */
+  public int size() {
+    return commandHistList.size();
+  }
+
+  /**
+   * @param index The index of the command, with 0 being the oldest one
+   * @return The command
+   */
+  public String getCommand(int index) {
+    return commandHistList.get(index);
+  }
+
+  /**
+   * Searches back through the history for a command containing
+   * <code>query</code>.
+   * @param query The text to search for
+   * @param before Only commands before this index are looked at
+   * @return The index of the most recent such command, or -1 if there is
+   * none
+   */
+  public int findPrevious(final String query, int before) {
+    before = Math.min(before, commandHistList.size());
+    if (query.isEmpty()) {
+      return -1;
+    }
+    if (query.length() < 3) {
+      /*
+       * Too short to have any trigrams. Then again, something this short
+       * is bound to show up in a recent command.
+       */
+      for (int i = before - 1; i >= 0; i--) {
+        if (commandHistList.get(i).contains(query)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    if (searchIndex == null) {
+      searchIndex = new CommandHistoryIndex();
+      int dropped = commandHistList.getDroppedCount();
+      for (int i = 0; i < commandHistList.size(); i++) {
+        searchIndex.add(i + dropped, commandHistList.get(i));
+      }
+    }
+    final int offset = commandHistList.getDroppedCount();
+    int id = searchIndex.find(query, offset, before + offset, 
+                              new CommandHistoryIndex.Candidates() {
+      public boolean matches(int id) {
+        return commandHistList.get(id - offset).contains(query);
+      }
+    });
+    return (id < 0) ? -1 : id - offset;
+  }
 }
@@ -0,0 +1,157 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An index of the commands in the {@link CommandHistory}, used to search
+ * back through them as the user types (with Ctrl+R).
+ * <p>
+ * Each command is broken up into trigrams (every run of 3 characters in
+ * it), and each trigram has a list of the commands it shows up in. A
+ * command can only contain the text searched for if it contains every
+ * trigram of that text, so rather than every command in the history, only
+ * those on the shortest of the lists need to be looked at. Commands are
+ * only ever added to the end of the history, with ids that keep going up,
+ * so the lists stay sorted and adding a command is a matter of adding its
+ * id to the end of a handful of them.
+ *
+ * @author Joel Moniz
+ */
+public class CommandHistoryIndex {
+
+  /**
+   * The ids of the commands containing a trigram, oldest first
+   */
+  static class Postings {
+    int[] ids = new int[4];
+    int size = 0;
+
+    void add(int id) {
+      if (size != 0 && ids[size - 1] == id) {
+        // This trigram shows up more than once in the command
+        return;
+      }
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = id;
+    }
+
+    /**
+     * @return The position of the largest id below <code>id</code>, or -1
+     */
+    int lastBefore(int id) {
+      int i = Arrays.binarySearch(ids, 0, size, id);
+      return (i >= 0 ? i : -i - 1) - 1;
+    }
+
+    boolean contains(int id) {
+      return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+  }
+
+  /**
+   * Postings for each trigram, keyed by the trigram's 3 characters packed
+   * into a long
+   */
+  HashMap<Long, Postings> trigrams;
+
+  public CommandHistoryIndex() {
+    trigrams = new HashMap<>();
+  }
+
+  /**
+   * Adds a command to the index. Ids must be added in increasing order.
+   * @param id The command's id
+   * @param command The command
+   */
+  public void add(int id, String command) {
+    for (int i = 0; i + 3 <= command.length(); i++) {
+      Long key = trigram(command, i);
+      Postings postings = trigrams.get(key);
+      if (postings == null) {
+        postings = new Postings();
+        trigrams.put(key, postings);
+      }
+      postings.add(id);
+    }
+  }
+
+  /**
+   * Finds the ids of the commands that might contain <code>query</code>,
+   * newest first.
+   * @param query The text searched for, at least 3 characters long
+   * @param from Only ids from this one up are looked at
+   * @param before Only ids below this are looked at
+   * @param candidates Called with each candidate in turn, until it returns
+   * true
+   * @return The id the search stopped at, or -1 if there were no more
+   * candidates
+   */
+  public int find(String query, int from, int before, 
+                  Candidates candidates) {
+    int n = query.length() - 2;
+    Postings[] lists = new Postings[n];
+    Postings shortest = null;
+    for (int i = 0; i < n; i++) {
+      lists[i] = trigrams.get(trigram(query, i));
+      if (lists[i] == null) {
+        // Nothing has this trigram, so nothing can match
+        return -1;
+      }
+      if (shortest == null || lists[i].size < shortest.size) {
+        shortest = lists[i];
+      }
+    }
+
+    for (int p = shortest.lastBefore(before); 
+         p >= 0 && shortest.ids[p] >= from; p--) {
+      int id = shortest.ids[p];
+      boolean inAll = true;
+      for (int i = 0; i < n && inAll; i++) {
+        inAll = (lists[i] == shortest) || lists[i].contains(id);
+      }
+      if (inAll && candidates.matches(id)) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Checks whether a candidate from the index really matches, since having
+   * all the right trigrams doesn't mean they're in the right order
+   */
+  public interface Candidates {
+    boolean matches(int id);
+  }
+
+  private static Long trigram(String s, int i) {
+    return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16)
+        | s.charAt(i + 2);
+  }
+}
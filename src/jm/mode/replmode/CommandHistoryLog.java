@@ -0,0 +1,515 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import processing.app.Preferences;
+
+/**
+ * The commands the user has entered, kept in an append-only log file so
+ * that they are still around the next time the PDE is started. Each
+ * command takes up one line of the file.
+ * <p>
+ * When the log is opened, the file is memory-mapped and only scanned for
+ * line breaks: a command is only turned back into a string once the user
+ * cycles back to it. This keeps opening the log quick, even with hundreds
+ * of thousands of commands in it. Commands entered since are kept in
+ * memory, and written to the end of the file on a thread of their own, so
+ * that the user never has to wait on the disk. In memory, each distinct
+ * command is only stored once, in a {@link CommandTable}, and the history
+ * itself is nothing more than a list of ids into it.
+ * <p>
+ * At most {@link #MAX_ENTRIES_PREF} commands are kept. If the file holds a
+ * good deal more than that when it is opened, it is rewritten in place with
+ * only the most recent ones. Other editors may be using the same file, so
+ * the file is locked while it is written to, and the commands to keep are
+ * read from it under the lock, rather than from what was read earlier.
+ *
+ * @author Joel Moniz
+ */
+public class CommandHistoryLog {
+
+  /**
+   * Preference used to store the most commands kept in the history
+   */
+  public static final String MAX_ENTRIES_PREF = "repl.history.max_entries";
+
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  /**
+   * Preference which, if true, has a command that is the same as the one
+   * just before it left out of the history. False by default, so that every
+   * command is kept, as it always has been.
+   */
+  public static final String IGNORE_DUPLICATES_PREF = 
+      "repl.history.ignore_duplicates";
+
+  /**
+   * Name of the log file, kept in the sketchbook folder
+   */
+  public static final String LOG_FILE_NAME = ".repl_history";
+
+  /**
+   * Size of the buffer used to read the log file when compacting it
+   */
+  static final int COPY_BUFFER_SIZE = 65536;
+
+  /**
+   * Held while locking the log file. Several editors in the same PDE may be
+   * writing to it, and a file can only be locked once in the same VM.
+   */
+  static final Object FILE_LOCK = new Object();
+
+  /**
+   * The log file, or null if the history isn't to be saved
+   */
+  File file;
+
+  /**
+   * The contents of the log file, as they were when it was opened
+   */
+  MappedByteBuffer mapped;
+
+  /**
+   * <code>lineStarts[i]</code> is the offset in <code>mapped</code> that
+   * the <code>i</code>th command in the file starts at
+   */
+  int[] lineStarts;
+
+  /**
+   * <code>lineEnds[i]</code> is the offset of the line break that the
+   * <code>i</code>th command in the file ends at
+   */
+  int[] lineEnds;
+
+  /**
+   * Number of commands in the log file when it was opened
+   */
+  int mappedCount;
+
+  /**
+   * Index of the first command in the file that is still part of the
+   * history. Commands before it have been pushed out by newer ones.
+   */
+  int firstMapped;
+
+  /**
+   * Number of commands pushed out of the history since the log was opened
+   */
+  int dropped;
+
+  /**
+   * The text of the commands entered since the log file was opened
+   */
+  CommandTable table;
+
+  /**
+   * Ids (in <code>table</code>) of the commands entered since the log file
+   * was opened are kept in <code>addedIds[addedStart]</code> to
+   * <code>addedIds[addedEnd - 1]</code>
+   */
+  int[] addedIds;
+
+  int addedStart;
+
+  int addedEnd;
+
+  /**
+   * Most commands kept in the history
+   */
+  int maxEntries;
+
+  /**
+   * Writes commands to the log file, one after the other
+   */
+  ThreadPoolExecutor writer;
+
+  /**
+   * @param file The log file (which needn't exist yet), or null to keep the
+   * history in memory only
+   */
+  public CommandHistoryLog(File file) {
+    this.file = file;
+    mapped = null;
+    lineStarts = new int[0];
+    lineEnds = new int[0];
+    mappedCount = 0;
+    firstMapped = 0;
+    dropped = 0;
+    table = new CommandTable();
+    addedIds = new int[16];
+    addedStart = 0;
+    addedEnd = 0;
+    maxEntries = getMaxEntries();
+    writer = null;
+    if (file != null) {
+      open();
+    }
+  }
+
+  /**
+   * @return The most commands the user would like kept in the history
+   */
+  static int getMaxEntries() {
+    try {
+      int max = Preferences.getInteger(MAX_ENTRIES_PREF);
+      return (max > 0) ? max : DEFAULT_MAX_ENTRIES;
+    } catch (NumberFormatException e) {
+      return DEFAULT_MAX_ENTRIES;
+    }
+  }
+
+  /**
+   * @return True if a command that is the same as the one just before it
+   * shouldn't be added to the history
+   */
+  public static boolean isIgnoringDuplicates() {
+    return Preferences.getBoolean(IGNORE_DUPLICATES_PREF);
+  }
+
+  /**
+   * Maps the log file into memory and finds where each command in it starts
+   */
+  private void open() {
+    if (!file.exists() || file.length() == 0) {
+      return;
+    }
+    // Done before the file is mapped, since a mapped file can't be
+    // shortened on some platforms
+    compact();
+    if (file.length() > Integer.MAX_VALUE) {
+      // Can't be mapped in one go, and couldn't be compacted. It's left as
+      // it is, but the history starts out empty.
+      return;
+    }
+    try (FileChannel channel = 
+        FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // The mapping stays valid after the channel is closed
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+
+    int size = mapped.limit();
+    int[] starts = new int[1024];
+    int[] ends = new int[1024];
+    int count = 0;
+    int lineStart = 0;
+    for (int i = 0; i < size; i++) {
+      if (mapped.get(i) == '\n') {
+        if (i > lineStart) {
+          if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+          }
+          starts[count] = lineStart;
+          ends[count] = i;
+          count++;
+        }
+        lineStart = i + 1;
+      }
+    }
+    // Anything after the last line break was only half written, and is
+    // left out
+    lineStarts = starts;
+    lineEnds = ends;
+    mappedCount = count;
+    firstMapped = Math.max(0, count - maxEntries);
+  }
+
+  /**
+   * @return The number of commands in the history
+   */
+  public int size() {
+    return (mappedCount - firstMapped) + (addedEnd - addedStart);
+  }
+
+  /**
+   * @param index The index of the command, with 0 being the oldest one
+   * @return The command
+   */
+  public String get(int index) {
+    int mappedSize = mappedCount - firstMapped;
+    if (index >= mappedSize) {
+      return table.get(addedIds[addedStart + index - mappedSize]);
+    }
+    int line = firstMapped + index;
+    int start = lineStarts[line];
+    byte[] bytes = new byte[lineEnds[line] - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = mapped.get(start + i);
+    }
+    return unescape(new String(bytes, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return The number of commands pushed out of the front of the history
+   * (by newer ones) since the log was opened. Adding this to the index of a
+   * command gives an id for it that doesn't change as older commands go.
+   */
+  public int getDroppedCount() {
+    return dropped;
+  }
+
+  /**
+   * Adds a command to the end of the history, and to the log file
+   * @param command The command
+   */
+  public void add(String command) {
+    if (addedEnd == addedIds.length) {
+      makeRoom();
+    }
+    addedIds[addedEnd++] = table.intern(command);
+    if (size() > maxEntries) {
+      if (firstMapped < mappedCount) {
+        firstMapped++;
+      } else {
+        addedStart++;
+      }
+      dropped++;
+    }
+    if (file != null) {
+      final byte[] line = 
+          (escape(command) + '\n').getBytes(StandardCharsets.UTF_8);
+      getWriter().execute(new Runnable() {
+        public void run() {
+          append(line);
+        }
+      });
+    }
+  }
+
+  /**
+   * Makes room for another id at the end of <code>addedIds</code>: by moving
+   * the ids down if commands have been pushed out of the front, and by
+   * growing it otherwise. Once the table holds many more commands than are
+   * still in the history, it is built again from just those.
+   */
+  private void makeRoom() {
+    int n = addedEnd - addedStart;
+    if (table.size() > 2 * Math.max(n, 1024)) {
+      CommandTable live = new CommandTable();
+      for (int i = addedStart; i < addedEnd; i++) {
+        addedIds[i] = live.intern(table.get(addedIds[i]));
+      }
+      table = live;
+    }
+    if (addedStart > addedIds.length / 2) {
+      System.arraycopy(addedIds, addedStart, addedIds, 0, n);
+    } else {
+      addedIds = Arrays.copyOfRange(addedIds, addedStart, 
+                                    addedStart + n + (n >> 1));
+    }
+    addedStart = 0;
+    addedEnd = n;
+  }
+
+  /**
+   * Waits for everything added so far to have been written to the log file.
+   * @return False if interrupted while waiting
+   */
+  public boolean flush() {
+    if (writer == null) {
+      return true;
+    }
+    final Object done = new Object();
+    synchronized (done) {
+      writer.execute(new Runnable() {
+        public void run() {
+          synchronized (done) {
+            done.notifyAll();
+          }
+        }
+      });
+      try {
+        done.wait();
+        return true;
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+  }
+
+  private synchronized ThreadPoolExecutor getWriter() {
+    if (writer == null) {
+      writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "REPL History Writer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      writer.allowCoreThreadTimeOut(true);
+    }
+    return writer;
+  }
+
+  /**
+   * Writes a line to the end of the log file. Other editors may be writing
+   * to the same file, so each line goes in with a single write.
+   */
+  private void append(byte[] line) {
+    file.getParentFile().mkdirs();
+    synchronized (FILE_LOCK) {
+      try (FileChannel channel = 
+          FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                           StandardOpenOption.WRITE, 
+                           StandardOpenOption.APPEND);
+           FileLock lock = channel.lock()) {
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Rewrites the log file in place, so that it only holds the most recent
+   * {@link #maxEntries} commands, if it holds a quarter more than that (or
+   * is too big to be mapped). Everything is read under the lock, so any
+   * commands other editors have added are kept. If anything goes wrong, the
+   * file is left as it was.
+   */
+  private void compact() {
+    synchronized (FILE_LOCK) {
+      try (FileChannel channel = 
+          FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                           StandardOpenOption.WRITE);
+           FileLock lock = channel.lock()) {
+        // Where each of the last maxEntries lines starts, going round
+        long[] starts = new long[maxEntries];
+        long count = 0;
+        long lineStart = 0;
+        long end = 0;
+        long position = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        while (channel.read(buffer) != -1) {
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            if (buffer.get() == '\n') {
+              if (position > lineStart) {
+                starts[(int) (count % maxEntries)] = lineStart;
+                count++;
+              }
+              lineStart = position + 1;
+              end = lineStart;
+            }
+            position++;
+          }
+          buffer.clear();
+        }
+        if (count <= maxEntries + maxEntries / 4
+            && position <= Integer.MAX_VALUE) {
+          return;
+        }
+
+        // Anything after the last line break was only half written, and is
+        // left out
+        long from = (count > maxEntries) 
+            ? starts[(int) (count % maxEntries)] : 0;
+        long to = 0;
+        while (from + to < end) {
+          buffer.clear();
+          buffer.limit((int) Math.min(buffer.capacity(), end - from - to));
+          int read = channel.read(buffer, from + to);
+          if (read <= 0) {
+            throw new IOException("Could not read " + file);
+          }
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            to += channel.write(buffer, to);
+          }
+        }
+        channel.truncate(to);
+      } catch (IOException e) {
+        // Most likely mapped by another editor; try again next time
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * @return <code>command</code>, with line breaks (and backslashes) escaped
+   * so that it fits on a single line of the log file
+   */
+  static String escape(String command) {
+    if (command.indexOf('\\') == -1 && command.indexOf('\n') == -1
+        && command.indexOf('\r') == -1) {
+      return command;
+    }
+    StringBuilder escaped = new StringBuilder(command.length() + 8);
+    for (int i = 0; i < command.length(); i++) {
+      char c = command.charAt(i);
+      if (c == '\\') {
+        escaped.append("\\\\");
+      } else if (c == '\n') {
+        escaped.append("\\n");
+      } else if (c == '\r') {
+        escaped.append("\\r");
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  /**
+   * Undoes {@link #escape(String)}
+   */
+  static String unescape(String line) {
+    if (line.indexOf('\\') == -1) {
+      return line;
+    }
+    StringBuilder command = new StringBuilder(line.length());
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '\\' && i + 1 < line.length()) {
+        char next = line.charAt(++i);
+        command.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        command.append(c);
+      }
+    }
+    return command.toString();
+  }
+}
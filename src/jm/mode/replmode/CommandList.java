@@ -27,9 +27,11 @@ import static java.lang.Math.min;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.Stack;
+import java.util.List;
 
+import processing.app.Preferences;
 import processing.mode.java.AutoFormat;
 
 /**
@@ -46,9 +48,9 @@ public class CommandList {
   CommandPromptPane promptPane;
 
   /**
-   * The list of valid commands the user has entered
+   * The valid commands the user has entered (and not undone)
    */
-  ArrayList<String> commandList;
+  CommandState commandList;
 
   /**
    * A list used as a "holding area" of sorts for a continuing command that
@@ -61,18 +63,26 @@ public class CommandList {
    */
   ArrayList<String> importsList;
 
-  /**
-   * Stack to store commands that the user wants undone. Can be used to
-   * redo undos.
-   */
-  Stack<String> undoStack;
-
   /**
    * Boolean representing whether an undo operation (or a volley of 
    * undos and redos) is in progress.
    */
   boolean isUndoing;
 
+  /**
+   * The states undone by the undos in progress, the most recently undone
+   * last, so that each statement redone is a single step forward. The
+   * first is the state the undos started out from.
+   */
+  ArrayList<CommandState> redoStack;
+
+  /**
+   * The states since the last <code>init</code> that were left behind, by
+   * undoing and then entering something else, or by moving to another
+   * branch. None of them is the start of another.
+   */
+  ArrayList<CommandState> branches;
+
   /**
    * An instance of processing's auto-formatter. Used to pretty up code before
    * appending it at the end of the current sketch when the user types
@@ -80,11 +90,125 @@ public class CommandList {
    */
   AutoFormat formatter;
 
+  /**
+   * The code of each statement in <code>commandList</code>, kept in step
+   * with it so that the sketch's code never has to be put together from
+   * scratch
+   */
+  CodeSegmentList drawSegments;
+
+  /**
+   * Preference which, if true, has the code of the REPL Console's sketch
+   * formatted on each run, and not just when it is to be read by the user
+   */
+  public static final String FORMAT_ON_RUN_PREF = "repl.format_on_run";
+
   /**
    * An instance of the {@link Size} class
    */
   Size size;
 
+  /**
+   * Number of undos done so far. Goes into the sketch's code, so that the
+   * running sketch can tell when something has been undone.
+   */
+  int undoCount;
+
+  /**
+   * The line the statements start on in the code last returned by
+   * {@link #getREPLSketchCode()}, or -1 if none has been returned yet
+   */
+  int drawStartLine;
+
+  /**
+   * Code that goes at the top of the REPL Console's sketch, to save the
+   * sketch window's background colour (and style) just after
+   * <code>setup()</code>, and to restore them at the start of the first
+   * frame drawn after an undo or a resize. A freshly set up canvas is all
+   * the one colour, and every statement is drawn afresh each frame anyway,
+   * so this leaves the sketch window looking just as it would in a freshly
+   * launched sketch VM. An undo, a redo or a resize that keeps the same
+   * renderer can then be hot swapped in, instead of closing and re-opening
+   * the sketch window.
+   * <p>
+   * <code>replRestore()</code> is handed the size the sketch should be, and
+   * resizes the surface of the running sketch if it isn't that size already.
+   * It is also handed the version of the code (see
+   * {@link #getCodeVersion(String)}), which the sketch doesn't use, but which
+   * lets the REPL Mode tell when a frame is being drawn by the new code.
+   * The fields never change from one build to the next, so hot swapping
+   * doesn't have to cope with a change in the shape of the class.
+   */
+  static final String CHECKPOINT_CODE = 
+      "int replBackground;\n"
+    + "PStyle replStyle;\n"
+    + "int replUndoCount;\n"
+    + "boolean replCanRestore;\n"
+    + "\n"
+    + "void replCheckpoint() {\n"
+    + "  replStyle = getStyle();\n"
+    + "  try {\n"
+    + "    replBackground = get(0, 0);\n"
+    + "    replCanRestore = true;\n"
+    + "  } catch (RuntimeException e) {\n"
+    + "    replCanRestore = false; // not every renderer has pixels to get\n"
+    + "  }\n"
+    + "}\n"
+    + "\n"
+    + "void replRestore(int undoCount, int w, int h, int version) {\n"
+    + "  boolean isResized = (w != width || h != height);\n"
+    + "  if (isResized) {\n"
+    + "    surface.setSize(w, h);\n"
+    + "  }\n"
+    + "  if ((isResized || undoCount != replUndoCount) && replCanRestore) {\n"
+    + "    background(replBackground);\n"
+    + "    style(replStyle);\n"
+    + "  }\n"
+    + "  replUndoCount = undoCount;\n"
+    + "}\n"
+    + "\n";
+
+  /**
+   * Code that goes at the top of the REPL Console's sketch, to have the
+   * errors that would otherwise stop the sketch in its tracks reported on
+   * one line of its error stream, starting with
+   * {@link REPLRunner#ERROR_MARKER}, followed by the stack trace. This is
+   * how the REPL Mode hears about them when the sketch VM is run without a
+   * debugger attached (see {@link REPLRunner#DEBUGGER_PREF}), and
+   * <code>setup()</code> only calls it then. With a debugger attached, the
+   * sketch VM's own handler is left alone, so that exceptions the debugger
+   * has been asked not to report still have their stack trace printed.
+   */
+  static final String ERROR_REPORT_CODE = 
+      "void replReportErrors() {\n"
+    + "  Thread.setDefaultUncaughtExceptionHandler(\n"
+    + "      new Thread.UncaughtExceptionHandler() {\n"
+    + "    public void uncaughtException(Thread t, Throwable e) {\n"
+    + "      String report = e.getClass().getName();\n"
+    + "      if (e.getMessage() != null) {\n"
+    + "        report += \"\\t\" + e.getMessage().replace('\\n', ' ');\n"
+    + "      }\n"
+    + "      System.err.println(\"" + REPLRunner.ERROR_MARKER 
+    +          "\" + report);\n"
+    + "      e.printStackTrace();\n"
+    + "    }\n"
+    + "  });\n"
+    + "}\n"
+    + "\n";
+
+  /**
+   * @return The number of line breaks in <code>code</code>
+   */
+  private static int countLines(CharSequence code) {
+    int lines = 0;
+    for (int i = 0; i < code.length(); i++) {
+      if (code.charAt(i) == '\n') {
+        lines++;
+      }
+    }
+    return lines;
+  }
+
   /**
    * Command word used to clear the REPL Console
    */
@@ -111,6 +235,12 @@ public class CommandList {
    */
   public static final String REDO_COMMAND = "redo";
 
+  /**
+   * Command word used to list the branches left behind by undoing and then
+   * entering something else, and to move to one of them
+   */
+  public static final String BRANCH_COMMAND = "branch";
+
   /**
    * Command word used to convert the code responsible for generating the
    * current sketch output into a function in the active sketch
@@ -128,11 +258,19 @@ public class CommandList {
   public static final String MAN_COMMAND = "man";
 
   /**
-   * Contains all the command words that can be used in the REPL Mode
+   * Command word used to print out how long each stage of running a
+   * statement has been taking
+   */
+  public static final String STATS_COMMAND = "stats";
+
+  /**
+   * Contains all the command words that come with the REPL Mode
+   * @deprecated The REPL Console's command words are kept in its
+   * {@link CommandRegistry}, which can have more plugged into it
    */
   public static final String[] REPL_COMMAND_SET = {
     CLEAR_COMMAND, INIT_COMMAND, RESIZE_COMMAND, UNDO_COMMAND, REDO_COMMAND,
-    CODIFY_COMMAND, HELP_COMMAND, MAN_COMMAND};
+    BRANCH_COMMAND, CODIFY_COMMAND, HELP_COMMAND, MAN_COMMAND, STATS_COMMAND};
 
   public static final String SIZE_PD2 = "P2D";
 
@@ -195,15 +333,35 @@ public class CommandList {
 
   public CommandList(CommandPromptPane promptPane) {
     this.promptPane = promptPane;
-    commandList = new ArrayList<>();
+    commandList = new CommandState();
     continuingCommandList = new ArrayList<>();
     importsList = new ArrayList<>();
-    undoStack = new Stack<>();
     isUndoing = false;
+    redoStack = new ArrayList<>();
+    branches = new ArrayList<>();
     formatter = new AutoFormat();
+    undoCount = 0;
+    drawStartLine = -1;
+    boolean formatOnRun = Preferences.getBoolean(FORMAT_ON_RUN_PREF);
+    drawSegments = new CodeSegmentList(formatter, formatOnRun);
     size = null;
   }
 
+  /**
+   * Sets whether the code of the REPL Console's sketch is formatted on each
+   * run (which only makes it easier on the eyes when debugging), or only
+   * when the user is going to read it.
+   * @param formatOnRun True if the code should be formatted on each run
+   */
+  public void setFormatOnRun(boolean formatOnRun) {
+    if (formatOnRun != drawSegments.formatOnAdd) {
+      drawSegments = new CodeSegmentList(formatter, formatOnRun);
+      for (String stmt : commandList.getStatements()) {
+        drawSegments.add(stmt);
+      }
+    }
+  }
+
   /**
    * Method to resize the REPL Console's sketch.
    * Sets the size to the default 100x100.
@@ -244,7 +402,7 @@ public class CommandList {
    * Sets the size to the default 100x100.
    */
   public void init() {
-    commandList.clear();
+    clearCommands();
     continuingCommandList.clear();
     clearUndoStack();
     size = new Size();
@@ -256,7 +414,7 @@ public class CommandList {
    * @param h The height of the sketch
    */
   public void init(int w, int h) {
-    commandList.clear();
+    clearCommands();
     continuingCommandList.clear();
     clearUndoStack();
     size = new Size(w, h);
@@ -274,7 +432,7 @@ public class CommandList {
    *          <code>P3D</code> or <code>PDF</code>
    */
   public void init(int w, int h, String renderer) {
-    commandList.clear();
+    clearCommands();
     continuingCommandList.clear();
     clearUndoStack();
     size = new Size(w, h, renderer);
@@ -291,7 +449,7 @@ public class CommandList {
     if (stmt.trim().equals("")) {
       ;
     } else if (size != null) {
-      commandList.add(stmt);
+      pushCommand(stmt);
     } else {
       error = true;
       promptPane.printStatusMessage("Nope. You'll need to run `init` first.");
@@ -305,9 +463,117 @@ public class CommandList {
    * command list
    */
   public void removePreviousStatement() {
-    if (commandList != null && !commandList.isEmpty()) {
-      commandList.remove(commandList.size() - 1);
+    if (commandList.size() > 0) {
+      popCommand();
+    }
+  }
+
+  /**
+   * Remove a statement from anywhere in the command list, leaving the
+   * statements after it where they were
+   * @param index The index of the statement in the command list
+   * @return The statement removed
+   */
+  public String removeStatement(int index) {
+    ArrayList<String> after = new ArrayList<>();
+    while (commandList.size() > index + 1) {
+      after.add(popCommand());
+    }
+    String removed = popCommand();
+    for (int i = after.size() - 1; i >= 0; i--) {
+      pushCommand(after.get(i));
+    }
+    return removed;
+  }
+
+  /**
+   * @return The number of statements in the command list
+   */
+  public int getStatementCount() {
+    return commandList.size();
+  }
+
+  /**
+   * @return The current state of the command list. It never changes, and
+   * the command list can be taken back to it with
+   * {@link #setState(CommandState)} at any time until the next
+   * <code>init</code>.
+   */
+  public CommandState getState() {
+    return commandList;
+  }
+
+  /**
+   * Takes the command list to an earlier state, or to another branch of
+   * the states since the last <code>init</code>. Only the statements that
+   * differ between the two states are touched, but finding them takes as
+   * many steps as the two states are deep, and the branches kept are each
+   * checked against <code>state</code> in the same way. The state left is
+   * kept as a branch, unless <code>state</code> carries on from it.
+   * @param state The state, as returned by {@link #getState()} or
+   * {@link #getBranches()}
+   * @return False if <code>state</code> is from before the last
+   * <code>init</code>
+   */
+  public boolean setState(CommandState state) {
+    CommandState common = commandList.getCommonAncestor(state);
+    if (common == null) {
+      return false;
+    }
+    clearUndoStack();
+    if (common != commandList) {
+      addBranch(commandList);
+      // The running sketch has statements taken away, as with an undo
+      undoCount++;
+    }
+    for (int i = branches.size() - 1; i >= 0; i--) {
+      if (branches.get(i).isAncestorOf(state)) {
+        branches.remove(i);
+      }
+    }
+    while (commandList != common) {
+      popCommand();
+    }
+    CommandState[] added = new CommandState[state.size() - common.size()];
+    for (CommandState s = state; s != common; s = s.parent) {
+      added[s.size() - common.size() - 1] = s;
+    }
+    for (CommandState s : added) {
+      drawSegments.add(s.statement);
+    }
+    commandList = state;
+    return true;
+  }
+
+  /**
+   * @return The branches left behind since the last <code>init</code>, in
+   * the order they were left behind. Any of them can be passed to
+   * {@link #setState(CommandState)}.
+   */
+  public List<CommandState> getBranches() {
+    return Collections.unmodifiableList(branches);
+  }
+
+  /**
+   * Keeps a state as a branch, unless it is empty, or is already the start
+   * of a branch. Any branch it carries on from is replaced by it. Each
+   * branch is checked in as many steps as it is deep, which is fine for the
+   * handful of branches a session tends to leave behind.
+   */
+  private void addBranch(CommandState state) {
+    if (state.size() == 0) {
+      return;
     }
+    for (int i = branches.size() - 1; i >= 0; i--) {
+      CommandState branch = branches.get(i);
+      if (state.isAncestorOf(branch)) {
+        return;
+      }
+      if (branch.isAncestorOf(state)) {
+        branches.remove(i);
+      }
+    }
+    branches.add(state);
   }
 
   /**
@@ -367,7 +633,7 @@ public class CommandList {
     }
     // Need to squish it into one line for undo to work without
     // having things either inefficient or overly complex
-    commandList.add(contCmd.toString());
+    pushCommand(contCmd.toString());
 
     continuingCommandList.clear();
     clearUndoStack();
@@ -379,16 +645,50 @@ public class CommandList {
    * @deprecated No longer used
    */
   public void clear() {
-    commandList.clear();
+    clearCommands();
     clearUndoStack();
   }
 
+  /**
+   * Adds a statement to the end of the command list
+   */
+  private void pushCommand(String stmt) {
+    commandList = commandList.add(stmt);
+    drawSegments.add(stmt);
+  }
+
+  /**
+   * Takes the last statement off the end of the command list
+   * @return The statement taken off
+   */
+  private String popCommand() {
+    drawSegments.removeLast();
+    String stmt = commandList.statement;
+    commandList = commandList.parent;
+    return stmt;
+  }
+
+  /**
+   * Empties the command list
+   */
+  private void clearCommands() {
+    // The states before this are of no use any more
+    commandList = new CommandState();
+    redoStack.clear();
+    branches.clear();
+    drawSegments.clear();
+  }
+
   /**
    * Lets the CommandList object know that the user is no longer 
    * undo/redo-ing things
    */
   public void clearUndoStack() {
-    undoStack.clear();
+    // Whatever was undone can no longer be redone, but is kept as a branch
+    if (!redoStack.isEmpty()) {
+      addBranch(redoStack.get(0));
+      redoStack.clear();
+    }
     isUndoing = false;
   }
 
@@ -403,9 +703,12 @@ public class CommandList {
   public int undo(int x) {
     int n = min(x, commandList.size());
     isUndoing = true;
-    for (int i = commandList.size() - 1, j = 0; j < n; i--, j++) {
-      undoStack.push(commandList.get(i));
-      commandList.remove(i);
+    for (int j = 0; j < n; j++) {
+      redoStack.add(commandList);
+      popCommand();
+    }
+    if (n > 0) {
+      undoCount++;
     }
     return n;
   }
@@ -422,9 +725,12 @@ public class CommandList {
     if (!isUndoing) {
       return 0;
     }
-    int n = min(x, undoStack.size());
-    for (int i = 0; i < n; i++) {
-      commandList.add(undoStack.pop());
+    int n = 0;
+    while (n < x && !redoStack.isEmpty()) {
+      // Move forward to the state undone, instead of making a new one
+      commandList = redoStack.remove(redoStack.size() - 1);
+      drawSegments.add(commandList.statement);
+      n++;
     }
     return n;
   }
@@ -433,6 +739,16 @@ public class CommandList {
    * Gets a syntactically correct sketch which consists of all the code in
    * the command list, along with the appropriate code in the {@link Size} 
    * object
+   * <p>
+   * Every statement goes into <code>draw()</code>, and
+   * <code>setup()</code> holds nothing but the call to <code>size()</code>
+   * and the REPL Mode's own calls. Undoing without restarting the sketch
+   * window relies on this: the checkpoint taken at the end of
+   * <code>setup()</code> (see {@link #CHECKPOINT_CODE}) only keeps the
+   * colour of one pixel, which is only the colour of the whole canvas
+   * while nothing has been drawn on it in <code>setup()</code>. Anything
+   * else put into <code>setup()</code> has to be drawn again after an undo
+   * some other way.
    * @return The code of the sketch
    */
   public String getREPLSketchCode() {
@@ -442,7 +758,8 @@ public class CommandList {
     if (size == null) {
       return null;
     }
-    StringBuilder code = new StringBuilder();
+    CharSequence drawCode = drawSegments.getCode();
+    StringBuilder code = new StringBuilder(drawCode.length() + 256);
     
     Iterator<String> it = importsList.iterator();
     while (it.hasNext()) {
@@ -450,31 +767,119 @@ public class CommandList {
       code.append('\n');
     }
     
-    if (!code.toString().isEmpty())
+    if (code.length() != 0)
       code.append('\n');
     
+    /*
+     * Only the compiler reads this, so it isn't run through the formatter.
+     * It's laid out just as the formatter would, though, so that it still
+     * reads well if drawSegments holds formatted code.
+     */
+    code.append(CHECKPOINT_CODE);
+    code.append(ERROR_REPORT_CODE);
+
     code.append("void setup() {\n");
+    code.append(CodeSegmentList.INDENT);
     code.append(size.getSizeStatement());
-    code.append("\n}\n\n");
-
-//    if (!commandList.isEmpty()) {
-      code.append("void draw() {\n");
-      it = commandList.iterator();
-      while (it.hasNext()) {
-        code.append(it.next());
-        code.append('\n');
-      }
-      code.append('}');
-//    }
-//    System.out.println(formatter.format(code.toString()));
-    return formatter.format(code.toString());
+    code.append('\n');
+    code.append(CodeSegmentList.INDENT);
+    code.append("replCheckpoint();\n");
+    if (!REPLRunner.isDebuggerEnabled()) {
+      code.append(CodeSegmentList.INDENT);
+      code.append("replReportErrors();\n");
+    }
+    code.append("}\n\n");
+
+    code.append("void draw() {\n");
+    // Anything that changes the code changes the version, and code that
+    // stays the same keeps it (so the build cache still picks it up)
+    int version = code.toString().hashCode();
+    version = 31 * version + drawCode.toString().hashCode();
+    version = 31 * version + undoCount;
+    code.append(CodeSegmentList.INDENT);
+    code.append("replRestore(").append(undoCount).append(", ")
+        .append(size.w).append(", ").append(size.h).append(", ")
+        .append(version).append(");\n");
+    drawStartLine = countLines(code);
+    code.append(drawCode);
+    code.append('}');
+    return code.toString();
+  }
+
+  /**
+   * @param code The code returned by {@link #getREPLSketchCode()}
+   * @return The version of <code>code</code>, which is handed to
+   * <code>replRestore()</code> at the start of each frame, or 0 if it can't
+   * be found
+   */
+  public static int getCodeVersion(String code) {
+    int start = code.indexOf("replRestore(", code.indexOf("void draw() {"));
+    int end = code.indexOf(')', start);
+    if (start == -1 || end == -1) {
+      return 0;
+    }
+    String[] args = code.substring(start + 12, end).split(",");
+    try {
+      return Integer.parseInt(args[args.length - 1].trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Finds the statement that a line in the code returned by 
+   * {@link #getREPLSketchCode()} belongs to.
+   * @param line The line number in the sketch's code, counting from 0
+   * @return The index of the statement in the command list, or -1 if the
+   * line doesn't belong to any statement
+   */
+  public int getStatementAtLine(int line) {
+    if (size == null || drawStartLine == -1) {
+      return -1;
+    }
+    return drawSegments.getSegmentAtLine(line - drawStartLine);
+  }
+
+  /**
+   * @return True if the sketch window can be brought back to how it was
+   * before the last undo by hot swapping in the new code (see
+   * {@link #CHECKPOINT_CODE}), and false if it has to be closed and
+   * re-opened
+   */
+  public boolean canRestoreCheckpoint() {
+    // PDF has no pixels to restore
+    return size != null && !SIZE_PDF.equals(size.renderer);
+  }
+
+  /**
+   * @param renderer The renderer the sketch window was last opened with
+   * (null for the default renderer)
+   * @return True if the sketch window can be brought to the current size by
+   * hot swapping in the new code and having the running sketch resize its
+   * own surface (see {@link #CHECKPOINT_CODE}), and false if the renderer
+   * has changed, so the sketch window has to be closed and re-opened
+   */
+  public boolean canResizeInPlace(String renderer) {
+    if (!canRestoreCheckpoint()) {
+      return false;
+    }
+    return (renderer == null) ? size.renderer == null
+                              : renderer.equals(size.renderer);
+  }
+
+  /**
+   * @return The renderer the REPL Console's sketch uses, or null if it uses
+   * the default renderer (or hasn't been initialized)
+   */
+  public String getRenderer() {
+    return (size == null) ? null : size.renderer;
   }
 
   /**
    * @return True if the user has entered legitimate code
    */
   public boolean hasStuffToCodify() {
-    return (commandList != null && !commandList.isEmpty());
+    return commandList.size() > 0;
   }
 
   /**
@@ -498,15 +903,11 @@ public class CommandList {
     code.append("void ");
     code.append(functionName);
     code.append("() {\n");
-    Iterator<String> it = commandList.iterator();
-    while (it.hasNext()) {
-      code.append(it.next());
-      code.append('\n');
-    }
+    // may as well have the code look pretty
+    code.append(drawSegments.getFormattedCode());
     code.append('}');
 
-    // may as well have the code look pretty
-    return formatter.format(code.toString());
+    return code.toString();
   }
 
 }
@@ -25,11 +25,25 @@ package jm.mode.replmode;
 
 import java.awt.Component;
 import java.awt.Event;
+import java.awt.Toolkit;
 import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.swing.AbstractAction;
@@ -39,12 +53,22 @@ import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
 import javax.swing.JTextArea;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.NavigationFilter;
 import javax.swing.text.Position;
 import javax.swing.text.Utilities;
 
+import processing.app.Base;
 import processing.app.Library;
+import processing.app.Mode;
+import processing.app.Preferences;
 import processing.app.SketchException;
 
 /**
@@ -75,6 +99,16 @@ public class CommandPromptPane extends NavigationFilter {
    */
   private Action shiftLine;
 
+  /**
+   * Represents the action done when the user hits the enter key
+   */
+  private Action enterAction;
+
+  /**
+   * Represents the action done when the user pastes something in
+   */
+  private Action pasteAction;
+
   /**
    * The console
    */
@@ -84,6 +118,106 @@ public class CommandPromptPane extends NavigationFilter {
 
   CommandList commandListManager;
 
+  /**
+   * The command words that can be entered in the REPL Console
+   */
+  CommandRegistry commands;
+
+  /**
+   * Splits each line entered into words, to find command words with
+   */
+  CommandTokenizer commandTokens;
+
+  /**
+   * Runs command words that aren't EDT-safe
+   */
+  ThreadPoolExecutor commandRunner;
+
+  /**
+   * The command word being run in the background, if any. Nothing else can
+   * be entered until it is done.
+   */
+  CommandRegistry.Command backgroundCommand;
+
+  /**
+   * Timings of each stage between the user hitting Enter and the result
+   * showing up in the sketch window
+   */
+  REPLLatencyStats latencyStats;
+
+  /**
+   * The last character of the last prompt printed, just after which the
+   * user's input starts. Kept as a Position so that it needn't be searched
+   * for, and so that it moves along with any text inserted before it.
+   */
+  Position inputStart;
+
+  /**
+   * Whether the user is searching back through the command history
+   * (with Ctrl+R)
+   */
+  boolean isSearching;
+
+  /**
+   * What the user is searching the command history for
+   */
+  StringBuilder searchQuery;
+
+  /**
+   * Index in the command history of the command last found by the search
+   */
+  int searchMatch;
+
+  /**
+   * Preference used to store the number of lines the REPL Console keeps
+   * before the oldest ones start getting thrown away. Anything below 1 is
+   * taken to mean {@link #DEFAULT_SCROLLBACK}.
+   */
+  public static final String SCROLLBACK_PREF = "repl.scrollback_lines";
+
+  public static final int DEFAULT_SCROLLBACK = 10000;
+
+  /**
+   * Whether a trim of the REPL Console's oldest lines is already on its way
+   */
+  boolean isTrimPending;
+
+  /**
+   * Preference used to store how long (in milliseconds) to wait for more
+   * statements before running the REPL Console's sketch, so that statements
+   * entered in quick succession are all run with a single build
+   */
+  public static final String BATCH_WINDOW_PREF = "repl.batch_window";
+
+  /**
+   * By default, statements typed in are run straight away. Pasted
+   * statements are always run together, though.
+   */
+  public static final int DEFAULT_BATCH_WINDOW = 0;
+
+  /**
+   * Greater than 0 while a batch of statements (such as several lines
+   * pasted in together) is being entered, in which case the sketch is only
+   * run once they're all in
+   */
+  int batchDepth;
+
+  /**
+   * Whether there are statements waiting to be run
+   */
+  boolean isRunPending;
+
+  /**
+   * Whether any of the statements waiting to be run needs the sketch window
+   * to be refreshed
+   */
+  boolean isRefreshPending;
+
+  /**
+   * Runs the statements waiting to be run once the batching window is up
+   */
+  Timer batchTimer;
+
   REPLEditor replEditor;
 
   /**
@@ -145,8 +279,19 @@ public class CommandPromptPane extends NavigationFilter {
   public CommandPromptPane(String prompt, String promptContinuation,
                            REPLEditor editor, JTextArea component) {
     consoleArea = component;
-    commandHistManager = new CommandHistory();
+    if (editor != null) {
+      commandHistManager = new CommandHistory(
+          new File(Base.getSketchbookFolder(), CommandHistoryLog.LOG_FILE_NAME));
+    } else {
+      commandHistManager = new CommandHistory();
+    }
     commandListManager = new CommandList(this);
+    latencyStats = new REPLLatencyStats();
+    commands = new CommandRegistry();
+    commandTokens = new CommandTokenizer();
+    commandRunner = null;
+    backgroundCommand = null;
+    registerCommands();
     replEditor = editor;
     this.prompt = prompt;
     this.promptContinuation = promptContinuation;
@@ -156,12 +301,23 @@ public class CommandPromptPane extends NavigationFilter {
     rowStartPosition = 0;
     isMarked = false;
     isMoved = false;
+    batchDepth = 0;
+    isRunPending = false;
+    isRefreshPending = false;
+    batchTimer = null;
+    isTrimPending = false;
+    isSearching = false;
+    searchQuery = new StringBuilder();
+    searchMatch = 0;
 
     // TODO: Check these next 4 lines out. Refactor later if necessary.
     deletePrevious = component.getActionMap().get("delete-previous");
     shiftLine = component.getActionMap().get("insert-break");
     component.getActionMap().put("delete-previous", new BackspaceAction());
-    component.getActionMap().put("insert-break", new EnterAction());
+    enterAction = new EnterAction();
+    component.getActionMap().put("insert-break", enterAction);
+    pasteAction = new PasteAction();
+    component.getActionMap().put(DefaultEditorKit.pasteAction, pasteAction);
 
     component.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_UP, 0),
                                 "up");
@@ -169,12 +325,54 @@ public class CommandPromptPane extends NavigationFilter {
     component.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_DOWN, 0),
                                 "down");
     component.getActionMap().put("down", new KeyAction("down"));
+    component.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_R,
+                                InputEvent.CTRL_DOWN_MASK), "reverse-search");
+    component.getActionMap().put("reverse-search", new SearchAction());
+    component.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0),
+                                "end-search");
+    component.getActionMap().put("end-search", new AbstractAction() {
+      private static final long serialVersionUID = 4829871209487316545L;
+
+      public void actionPerformed(ActionEvent e) {
+        endSearch();
+      }
+    });
+    component.addKeyListener(new KeyAdapter() {
+      @Override
+      public void keyTyped(KeyEvent e) {
+        if (isSearching) {
+          /*
+           * While searching, whatever is typed goes into the search query,
+           * and not into the console
+           */
+          char c = e.getKeyChar();
+          if (!Character.isISOControl(c)) {
+            searchQuery.append(c);
+            searchHistory(searchMatch + 1);
+          }
+          e.consume();
+        }
+      }
+    });
     
 //    component.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_C,
 //                                                       Event.CTRL_MASK),
 //                                                       "copy");
 //    component.getActionMap().put("copy", new KeyAction("copy"));
 
+    inputStart = null;
+    markInputStart();
+    component.getDocument().addDocumentListener(new DocumentListener() {
+      public void insertUpdate(DocumentEvent e) {
+        checkScrollback();
+      }
+
+      public void removeUpdate(DocumentEvent e) {
+      }
+
+      public void changedUpdate(DocumentEvent e) {
+      }
+    });
     component.setCaretPosition(prefixLength);
     component.setLineWrap(true);
     
@@ -230,6 +428,18 @@ public class CommandPromptPane extends NavigationFilter {
     public void actionPerformed(ActionEvent e) {
       JTextArea component = (JTextArea) e.getSource();
 
+      if (isSearching) {
+        /*
+         * Take a character off the search query, and search again from the
+         * most recent command
+         */
+        if (searchQuery.length() > 0) {
+          searchQuery.setLength(searchQuery.length() - 1);
+          searchHistory(commandHistManager.size());
+        }
+        return;
+      }
+
       /*
        * Delete the previous character (or the selection) only when the cursor
        * location from the start of the line is after the prefix. Prevents the
@@ -266,25 +476,35 @@ public class CommandPromptPane extends NavigationFilter {
       if (isMarked) {
         return;
       }
+      if (backgroundCommand != null) {
+        // Still busy with the last command word
+        Toolkit.getDefaultToolkit().beep();
+        return;
+      }
+      // Run whatever the search found
+      endSearch();
+      long enterTime = latencyStats.markEnter();
       JTextArea component = (JTextArea) e.getSource();
-      component.setCaretPosition(component.getText().length());
+      component.setCaretPosition(component.getDocument().getLength());
       String command = getLastLine();
       String trimmedCommand = command.trim();
-      String firstCommandWord = command.split(" ")[0];
+      commandTokens.tokenize(trimmedCommand);
+      CommandRegistry.Command replCommand = commands.get(commandTokens, 0);
       shiftLine.actionPerformed(null);
       commandHistManager.insertCommand(command);
 
-      if (Arrays.asList(CommandList.REPL_COMMAND_SET)
-          .contains(firstCommandWord)) {
+      if (replCommand != null) {
         /*
          * If the string entered is a command word
          */
-        handleREPLModeCommand(trimmedCommand, component);
+        latencyStats.recordSince(REPLLatencyStats.PARSE, enterTime);
+        handleREPLModeCommand(trimmedCommand, replCommand, component);
       } else {
         if (importInLinePattern.matcher(trimmedCommand).find()) {
           /*
            * If the string entered contains an import statement
            */
+          latencyStats.recordSince(REPLLatencyStats.PARSE, enterTime);
           handleImportStatement(trimmedCommand, component);
         }
         else if (isContinuing || trimmedCommand.endsWith("{")
@@ -293,13 +513,17 @@ public class CommandPromptPane extends NavigationFilter {
            * If the string entered is a continuation of a previous statement,
            * or if it hints at a continuation (by ending with a '{' or ',')  
            */
+          latencyStats.recordSince(REPLLatencyStats.PARSE, enterTime);
           handleContinuingStatement(trimmedCommand, component);
         } else {
           /*
            * If the string entered is a single, non-command word statement 
            */
+          latencyStats.recordSince(REPLLatencyStats.PARSE, enterTime);
+          long updateStart = System.nanoTime();
           boolean error = commandListManager.addStatement(command);
-          component.replaceSelection(prompt);
+          latencyStats.recordSince(REPLLatencyStats.COMMAND_LIST, updateStart);
+          printPrompt(prompt);
           prefixLength = prompt.length();
           runTempSketch(error, false);
         }
@@ -333,7 +557,7 @@ public class CommandPromptPane extends NavigationFilter {
        */
       printStatusMessage("Oops! REPL Mode is in the midst of another "
           + "command (block). Can't import until that is done.");
-      component.replaceSelection(promptContinuation);
+      printPrompt(promptContinuation);
       prefixLength = promptContinuation.length();
     }
     else if (importPattern.matcher(stmt).find()) {
@@ -348,7 +572,7 @@ public class CommandPromptPane extends NavigationFilter {
         printStatusMessage("Cannot find the library that import statement "
             + "corresponds with.");
       }
-      component.replaceSelection(prompt);
+      printPrompt(prompt);
       prefixLength = prompt.length();
     }
     else {
@@ -359,7 +583,7 @@ public class CommandPromptPane extends NavigationFilter {
        */
       printStatusMessage("The import is a complex thing." +
           " Please import a library in a stand-alone statement");
-      component.replaceSelection(prompt);
+      printPrompt(prompt);
       prefixLength = prompt.length();
     }
   }
@@ -377,16 +601,21 @@ public class CommandPromptPane extends NavigationFilter {
     entry = entry.trim().substring(6).trim();
 
     // Try to get the library classpath and add it to the list
-      try {
-        Library library = replEditor.getMode().getLibrary(entry);
-        
-        if (library == null) {
-          return false;
-        }
-      } catch (SketchException e) {
-        e.printStackTrace();
+    try {
+      Mode mode = replEditor.getMode();
+      LibraryIndex index = ((REPLMode) mode).getLibraryIndex();
+      // Until the index has been built, the mode has to go looking
+      Library library = index.isReady() ? index.getLibrary(entry)
+                                        : mode.getLibrary(entry);
+
+      if (library == null) {
         return false;
       }
+      index.warm(library);
+    } catch (SketchException e) {
+      e.printStackTrace();
+      return false;
+    }
     return true;
   }
 
@@ -398,6 +627,7 @@ public class CommandPromptPane extends NavigationFilter {
    */
   protected void handleContinuingStatement(String command, 
                                            JTextArea component) {
+    long updateStart = System.nanoTime();
     boolean error = commandListManager.addContinuingStatement(command);
 
     if (command.endsWith("}") || command.endsWith(";")) {
@@ -418,7 +648,8 @@ public class CommandPromptPane extends NavigationFilter {
          * there never were any to close in the first place.
          */
         commandListManager.endContinuingStatement();
-        component.replaceSelection(prompt);
+        latencyStats.recordSince(REPLLatencyStats.COMMAND_LIST, updateStart);
+        printPrompt(prompt);
         prefixLength = prompt.length();
         isContinuing = false;
         runTempSketch(error, false);
@@ -427,7 +658,7 @@ public class CommandPromptPane extends NavigationFilter {
          * Set the prompt and prompt length appropriately, etc.
          * And the continuing block continues...
          */
-        component.replaceSelection(promptContinuation);
+        printPrompt(promptContinuation);
         prefixLength = promptContinuation.length();
         isContinuing = true;
       }
@@ -435,7 +666,7 @@ public class CommandPromptPane extends NavigationFilter {
       /*
        * And continues...
        */
-      component.replaceSelection(promptContinuation);
+      printPrompt(promptContinuation);
       prefixLength = promptContinuation.length();
       isContinuing = true;
 
@@ -446,142 +677,381 @@ public class CommandPromptPane extends NavigationFilter {
   }
 
   /**
-   * Handles an REPL command word entered by the user.
-   * @param command The line containing the command word just entered by
-   * the user
-   * @param component The text area component
+   * Registers the REPL Mode's command words with <code>commands</code>.
    */
-  protected void handleREPLModeCommand(String command, JTextArea component) {
-    boolean isDone = true;
-    boolean refresh = false;
-    String firstCommandWord = command.split(" ")[0];
-    if (command.equals(CommandList.CLEAR_COMMAND)) {
-      // TODO: Or is selecting everything and then using 
-      // replaceSelection() better?
-//    component.select(0, component.getText().length());
-//    component.replaceSelection(prompt);
-
-      openLeftCurlies = 0;
-      isContinuing = false;
-      component.setText(prompt);
-
-      // Don't clear the screen and undo stack any more
-//      commandListManager.clear();
-    } else if (firstCommandWord.equals(CommandList.INIT_COMMAND)) {
-      isDone = handleInit(command, false);
-      if (isDone) {
-        /*
-         * handleInit() succeeded
-         */
-        component.setText(prompt + command + '\n' + prompt);
+  protected void registerCommands() {
+    commands.register(new CommandRegistry.Command(CommandList.INIT_COMMAND) {
+      public boolean isAllowedInBlock() {
+        // Starts everything over anyway
+        return true;
+      }
+
+      public String getHelp() {
+        return "\ninit\n----\n"
+            + "Represents the first command issued to the REPL Mode "
+            + "Console, to initialize the it. Also used to pass in details "
+            + "about width and height of the sketch the console has to "
+            + "display. May take the following forms:\n"
+            + "* init: Initialize the console to display a 100x100 sketch \n"
+            + "* init w h: Initialize the console to display a sketch of "
+            + "width w and height h\n"
+            + "* init w h r: Initialize the console to display a sketch of "
+            + "width w and height h, and to use a renderer of type r "
+            + "(r = P2D or P3D)";
+      }
+
+      public int run(String command, CommandTokenizer args) {
+        if (!handleInit(args, false)) {
+          printPrompt();
+          return CommandRegistry.NO_CHANGE;
+        }
+        consoleArea.setText(prompt + command + '\n' + prompt);
+        markInputStart();
         openLeftCurlies = 0;
         isContinuing = false;
-      }
-      else if (isContinuing) {
+        rowStartPosition = 0;
         /*
-         * handleInit() failed, and the user was entering a code block before
-         * just before
+         * Refresh (close and reopen) the sketch window, since the size might
+         * have changed, and everything has to be cleared.
          */
-        component.replaceSelection(promptContinuation);
+        return CommandRegistry.REFRESH;
       }
-      else {
-        component.replaceSelection(prompt);
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.RESIZE_COMMAND) {
+      public String getHelp() {
+        return "\nresize\n------\n"
+            + "Allows the user to resize sketch that the REPL console "
+            + "displays without losing the contents of the sketch. Can be "
+            + "run in one of the following 3 ways, each similiar to their "
+            + "`init` counterparts:\n  "
+            + "* resize\n  "
+            + "* resize w h\n  "
+            + "* resize w h r";
       }
-    } else if (firstCommandWord.equals(CommandList.RESIZE_COMMAND)) {
-      if (isContinuing) {
+
+      public int run(String command, CommandTokenizer args) {
+        String renderer = commandListManager.getRenderer();
+        boolean isDone = handleInit(args, true);
+        printPrompt(prompt);
+        if (!isDone) {
+          return CommandRegistry.NO_CHANGE;
+        }
         /*
-         * Don't permit the user to resize the sketch in the midst of a command
-         * block
+         * The running sketch resizes its own surface when the new code is
+         * hot swapped in. Only a change of renderer needs a new sketch VM.
          */
-        printStatusMessage("Oops! REPL Mode is in the midst of another "
-            + "command (block)");
-        isDone = false;
-        component.replaceSelection(promptContinuation);
-      } else {
-        isDone = handleInit(command, true);
-        component.replaceSelection(prompt);
-        refresh = true;
+        return commandListManager.canResizeInPlace(renderer)
+            ? CommandRegistry.RUN : CommandRegistry.REFRESH;
       }
-    } else if (firstCommandWord.equals(CommandList.UNDO_COMMAND)) {
-      if (isContinuing) {
-        /*
-         * Don't permit the user to undo something in the midst of a command
-         * block
-         */
-        printStatusMessage("Oops! REPL Mode is in the midst of another "
-            + "command (block)");
-        isDone = false;
-        component.replaceSelection(promptContinuation);
-      } else {
-        isDone = handleUndo(command, false);
-        component.replaceSelection(prompt);
-        /*
-         * Undo needs to refresh, since otherwise, a shape already drawn
-         * persists in the sketch window, and we don't want to force a clear()
-         * since the user may want and expect persistence 
-         */
-        refresh = true;
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.CLEAR_COMMAND) {
+      public boolean isAllowedInBlock() {
+        return true;
+      }
+
+      public String getHelp() {
+        return "\nclear\n-----\nUsed to clear the REPL Console "
+            + "without affecting anything else";
+      }
+
+      public int run(String command, CommandTokenizer args) {
+        if (args.count() != 1) {
+          printStatusMessage("Error: clear takes no arguments");
+          printPrompt();
+          return CommandRegistry.NO_CHANGE;
+        }
+        // Don't clear the undo stack, only the screen
+        openLeftCurlies = 0;
+        isContinuing = false;
+        consoleArea.setText(prompt);
+        markInputStart();
+        // When cleared, the start of the row is at position 0
+        rowStartPosition = 0;
+        return CommandRegistry.RUN;
+      }
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.UNDO_COMMAND) {
+      public String getHelp() {
+        return "\nundo\n----\n"
+            + "Used to undo a (set of) statement(s). Command statements "
+            + "cannot be undone. Can be called in one of 2 ways:\n"
+            + "* undo: Undoes the last valid statment.\n"
+            + "* undo x: Undoes the last x statements.";
       }
-    } else if (firstCommandWord.equals(CommandList.REDO_COMMAND)) {
-      if (isContinuing) {
+
+      public int run(String command, CommandTokenizer args) {
+        boolean isDone = handleUndo(args, false);
+        printPrompt(prompt);
+        if (!isDone) {
+          return CommandRegistry.NO_CHANGE;
+        }
         /*
-         * Don't permit the user to redo an undo in the midst of a command
-         * block (even if this was permitted, what would the user redo, 
-         * though?)
+         * A shape already drawn would otherwise persist in the sketch window,
+         * and we don't want to force a clear() since the user may want and
+         * expect persistence. The sketch restores its blank canvas on its
+         * own, though, so unless it can't (with PDF), there is no need to
+         * refresh.
          */
-        printStatusMessage("Oops! REPL Mode is in the midst of another "
-            + "command (block)");
-        isDone = false;
-        component.replaceSelection(promptContinuation);
-      } else {
-        isDone = handleUndo(command, true);
-        component.replaceSelection(prompt);
-      }
-    } else if (firstCommandWord.equals(CommandList.CODIFY_COMMAND)) {
-      // Always have isDone as false, since we really don't want anything 
-      // to get updated
-      isDone = false;
-      if (isContinuing) {
+        return commandListManager.canRestoreCheckpoint() 
+            ? CommandRegistry.RUN : CommandRegistry.REFRESH;
+      }
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.REDO_COMMAND) {
+      public String getHelp() {
+        return "\nredo\n----\n"
+            + "Used to redo a (set of) statement(s). A redo can only be "
+            + "performed immendiately after an undo. Can be called in one "
+            + "of 2 ways:\n"
+            + "* redo: \"Redoes\" the last undo\n"
+            + "* redo x: \"Redoes\" the last x statements undone by an "
+            + "undo";
+      }
+
+      public int run(String command, CommandTokenizer args) {
+        boolean isDone = handleUndo(args, true);
+        printPrompt(prompt);
+        return isDone ? CommandRegistry.RUN : CommandRegistry.NO_CHANGE;
+      }
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.BRANCH_COMMAND) {
+      public String getHelp() {
+        return "\nbranch\n------\n"
+            + "Undoing a statement and then entering something else leaves "
+            + "the statements undone behind as a branch, which can no "
+            + "longer be redone, but can be moved back to. Can be called in "
+            + "one of 2 ways:\n"
+            + "* branch: Lists the branches left behind since the last init\n"
+            + "* branch x: Moves to branch x, leaving the statements entered "
+            + "now behind as a branch in its place";
+      }
+
+      public int run(String command, CommandTokenizer args) {
+        boolean isDone = handleBranch(args);
+        printPrompt(prompt);
+        if (!isDone) {
+          return CommandRegistry.NO_CHANGE;
+        }
+        // Statements may have been taken away, just as with an undo
+        return commandListManager.canRestoreCheckpoint() 
+            ? CommandRegistry.RUN : CommandRegistry.REFRESH;
+      }
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.CODIFY_COMMAND) {
+      public String getHelp() {
+        return "\ncodify\n-----\n"
+            + "Adds a method of the void return type to the current tab, "
+            + "the method body consisting of all statements used to display "
+            + "the output visible at present (i.e., all statements from the "
+            + "last init, excluding those undone). Takes the format "
+            + "`codify x`, where x is a string representing the method "
+            + "name.";
+      }
+
+      public int run(String command, CommandTokenizer args) {
+        handleCodify(args);
+        printPrompt(prompt);
+        // Nothing in the sketch changes
+        return CommandRegistry.NO_CHANGE;
+      }
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.HELP_COMMAND) {
+      public boolean isAllowedInBlock() {
         /*
-         * Don't permit the user to convert code into a function in the
-         * midst of a command block
+         * Asking for help is always reasonable, even if it's in the midst of
+         * a command block :p
          */
-        printStatusMessage("Oops! REPL Mode is in the midst of another "
-            + "command (block)");
-        component.replaceSelection(promptContinuation);
-      } else {
-        handleCodify(command);
-        component.replaceSelection(prompt);
-      }
-    } else if (firstCommandWord.equals(CommandList.HELP_COMMAND)) {
-      // Always have isDone as false, since we really don't want anything
-      // to get updated
-      isDone = false;
-      handleHelp(command);
+        return true;
+      }
+
+      public String getHelp() {
+        return "\nhelp(noun): something or someone that helps.\n"
+            + "  (Cambridge Dictionary)"
+            + "\nOK, so that wasn't very helpful...";
+      }
+
+      public int run(String command, CommandTokenizer args) {
+        handleHelp(args);
+        printPrompt();
+        return CommandRegistry.NO_CHANGE;
+      }
+    });
+
+    commands.register(new CommandRegistry.Command(CommandList.STATS_COMMAND) {
+      public boolean isAllowedInBlock() {
+        return true;
+      }
+
+      public String getHelp() {
+        return "\nstats\n-----\n"
+            + "Shows how long each stage between hitting Enter and the "
+            + "result showing up in the sketch window has been taking "
+            + "(the 50th, 95th and 99th percentiles, over the last few "
+            + "hundred statements). Can be called in one of 2 ways:\n"
+            + "* stats: Prints the timings of each stage\n"
+            + "* stats clear: Throws away the timings recorded so far";
+      }
+
+      public int run(String command, CommandTokenizer args) {
+        handleStats(args);
+        printPrompt();
+        // Nothing to run here either
+        return CommandRegistry.NO_CHANGE;
+      }
+    });
+
+    loadServiceCommands();
+  }
+
+  /**
+   * Registers the command words plugged in as {@link ReplCommand}s, whether
+   * by the REPL Mode itself or by jars in its <code>mode</code> folder.
+   */
+  protected void loadServiceCommands() {
+    Iterator<ReplCommand> services = 
+        ServiceLoader.load(ReplCommand.class, 
+                           CommandPromptPane.class.getClassLoader()).iterator();
+    while (true) {
+      try {
+        if (!services.hasNext()) {
+          break;
+        }
+        commands.register(new ServiceCommand(services.next()));
+      } catch (ServiceConfigurationError e) {
+        // A broken command shouldn't keep the others out
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * A command word plugged in as a {@link ReplCommand}
+   */
+  class ServiceCommand extends CommandRegistry.Command {
+    final ReplCommand service;
+
+    ServiceCommand(ReplCommand service) {
+      super(service.getWord());
+      this.service = service;
+    }
+
+    public boolean isAllowedInBlock() {
+      return service.isAllowedInBlock();
+    }
+
+    public boolean isEdtSafe() {
+      return service.isEdtSafe();
+    }
+
+    public String getHelp() {
+      return service.getHelp();
+    }
+
+    public int run(String command, CommandTokenizer args) {
+      String[] words = new String[args.count()];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = args.get(i);
+      }
+      int outcome = service.run(command, words, 
+                                new CommandContext(!service.isEdtSafe()));
+      if (service.isEdtSafe()) {
+        printPrompt();
+      }
+      return outcome;
+    }
+  }
+
+  /**
+   * What a {@link ReplCommand} gets to see of the REPL Console
+   */
+  class CommandContext implements ReplCommandContext {
+    /**
+     * Whether the command is being run in the background
+     */
+    final boolean isBackground;
+
+    CommandContext(boolean isBackground) {
+      this.isBackground = isBackground;
+    }
+
+    public void printMessage(final String message) {
+      if (!isBackground) {
+        printStatusMessage(message);
+        return;
+      }
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          insertBeforeInput(message + "\n");
+        }
+      });
+    }
+
+    public String getSketchCode() {
+      if (SwingUtilities.isEventDispatchThread()) {
+        return commandListManager.getREPLSketchCode();
+      }
       /*
-       * Asking for help is always reasonable, even if it's in the midst of a
-       * command block :p
+       * Nothing can be entered while a command is running in the
+       * background, so this is still the code the command was entered on
        */
-      if (isContinuing) {
-        component.replaceSelection(promptContinuation);
-      } else {
-        component.replaceSelection(prompt);
+      final String[] code = new String[1];
+      try {
+        SwingUtilities.invokeAndWait(new Runnable() {
+          public void run() {
+            code[0] = commandListManager.getREPLSketchCode();
+          }
+        });
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (InvocationTargetException e) {
+        e.printStackTrace();
       }
+      return code[0];
+    }
+
+    public REPLEditor getEditor() {
+      return replEditor;
     }
-    else if (command.equals(CommandList.MAN_COMMAND)) {
+  }
+
+  /**
+   * @return The command words that can be entered in the REPL Console
+   */
+  public CommandRegistry getCommands() {
+    return commands;
+  }
+
+  /**
+   * Handles an REPL command word entered by the user.
+   * @param command The line containing the command word just entered by
+   * the user, trimmed
+   * @param replCommand The command the command word belongs to
+   * @param component The text area component
+   */
+  protected void handleREPLModeCommand(String command,
+                                       CommandRegistry.Command replCommand,
+                                       JTextArea component) {
+    int outcome;
+    if (isContinuing && !replCommand.isAllowedInBlock()) {
       /*
-       * Although the second sentence is the truth, the first is, well, a 
-       * poor little joke.
-       * And the only person who's likely to so much as smile at this little
-       *  pun is, well... me. Maybe. 
+       * Don't permit the user to resize the sketch, undo, redo or codify
+       * in the midst of a command block
        */
-      printStatusMessage("Awwww `man`! This humble little mode is not worthy "
-          + "of having its own man pages. Maybe try `help` instead?");
-      if (isContinuing) {
-        component.replaceSelection(promptContinuation);
-      } else {
-        component.replaceSelection(prompt);
-      }
+      printStatusMessage("Oops! REPL Mode is in the midst of another "
+          + "command (block)");
+      printPrompt(promptContinuation);
+      outcome = CommandRegistry.NO_CHANGE;
+    } else if (!replCommand.isEdtSafe()) {
+      runInBackground(command, replCommand);
+      return;
+    } else {
+      outcome = replCommand.run(command, commandTokens);
     }
 
     if (isContinuing) {
@@ -591,34 +1061,106 @@ public class CommandPromptPane extends NavigationFilter {
       prefixLength = prompt.length();
     }
 
-    if (command.equals(CommandList.CLEAR_COMMAND)) {
-      /*
-       * When cleared, the staring of the row is at position 0. 
-       */
-      rowStartPosition = 0;
-    } else if (firstCommandWord.equals(CommandList.INIT_COMMAND) && isDone) {
-      try {
-        int cp = consoleArea.getCaretPosition();
-        rowStartPosition = Utilities.getRowStart(consoleArea, cp);
-        /*
-         * Refresh (close and reopen) the sketch window, since the size might
-         * have changed, and everything has to be cleared.
-         */
-        refresh = true;
-      } catch (BadLocationException e1) {
-        e1.printStackTrace();
-      }
-    } else {
-      try {
-        rowStartPosition = Math.max(rowStartPosition, Utilities
-            .getRowStart(consoleArea, consoleArea.getCaretPosition()));
-      } catch (BadLocationException e1) {
-        e1.printStackTrace();
-      }
+    try {
+      rowStartPosition = Math.max(rowStartPosition, Utilities
+          .getRowStart(consoleArea, consoleArea.getCaretPosition()));
+    } catch (BadLocationException e1) {
+      e1.printStackTrace();
+    }
+
+    /* NO_CHANGE ==> isError */
+    runTempSketch(outcome == CommandRegistry.NO_CHANGE,
+                  outcome == CommandRegistry.REFRESH);
+  }
+
+  /**
+   * Runs a command word that isn't EDT-safe on the command runner. Until it
+   * is done, anything the user types goes in below the line the command was
+   * entered on, and whatever the command prints (followed by the prompt)
+   * goes in above it.
+   * @param command The line containing the command word, trimmed
+   * @param replCommand The command the command word belongs to
+   */
+  protected void runInBackground(final String command,
+                                 final CommandRegistry.Command replCommand) {
+    backgroundCommand = replCommand;
+    markInputStart();
+    prefixLength = 0;
+    try {
+      rowStartPosition = Math.max(rowStartPosition, Utilities
+          .getRowStart(consoleArea, consoleArea.getCaretPosition()));
+    } catch (BadLocationException e1) {
+      e1.printStackTrace();
     }
 
-    runTempSketch(!isDone, refresh); /* since !isDone ==> isError */
+    getCommandRunner().execute(new Runnable() {
+      public void run() {
+        // The EDT has a tokenizer of its own to get on with
+        CommandTokenizer args = new CommandTokenizer();
+        args.tokenize(command);
+        int outcome;
+        try {
+          outcome = replCommand.run(command, args);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+          outcome = CommandRegistry.NO_CHANGE;
+        }
+        final int result = outcome;
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            finishBackgroundCommand(result);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Prints the prompt once a command word run in the background is done,
+   * and runs the sketch if the command has changed it.
+   * @param outcome What the command returned
+   */
+  protected void finishBackgroundCommand(int outcome) {
+    backgroundCommand = null;
+    insertBeforeInput(isContinuing ? promptContinuation : prompt);
+    prefixLength = (isContinuing ? promptContinuation : prompt).length();
+    runTempSketch(outcome == CommandRegistry.NO_CHANGE,
+                  outcome == CommandRegistry.REFRESH);
+  }
+
+  /**
+   * Inserts text just before the user's input, which is left where it is.
+   * If <code>text</code> ends in a line break, the user's input starts
+   * a new row after it.
+   */
+  protected void insertBeforeInput(String text) {
+    Document doc = consoleArea.getDocument();
+    int offset = getInputStart();
+    try {
+      doc.insertString(offset, text, null);
+      inputStart = doc.createPosition(offset + text.length() - 1);
+      rowStartPosition = text.endsWith("\n") ? offset + text.length() 
+                                             : offset;
+    } catch (BadLocationException e) {
+      e.printStackTrace();
+    }
+  }
 
+  private ThreadPoolExecutor getCommandRunner() {
+    if (commandRunner == null) {
+      commandRunner = 
+          new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                                 new LinkedBlockingQueue<Runnable>(),
+                                 new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "REPL Command Runner");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      commandRunner.allowCoreThreadTimeOut(true);
+    }
+    return commandRunner;
   }
 
   /**
@@ -627,8 +1169,8 @@ public class CommandPromptPane extends NavigationFilter {
    * sentence well-formed and gramaticalie correct (who said anything about
    * spelling, though?)
    * 
-   * @param arg The string entered by the user which represents the 
-   * <code>init</code>/<code>resize</code> command word
+   * @param args The words of the line entered by the user which represents
+   * the <code>init</code>/<code>resize</code> command word
    * @param isReInit Whether or not the mode console's sketch is simply being
    * resize (if true), and not re-initialized from scratch (if false)
    * @return True iff the statement entered by the user was in proper form- 
@@ -636,37 +1178,36 @@ public class CommandPromptPane extends NavigationFilter {
    * <code>int</code>s, the user didn't try to enter a renderer unknown to
    * processing, etc. etc. 
    */
-  private boolean handleInit(String arg, boolean isReInit) {
-    String args[] = arg.split("\\s+");
+  private boolean handleInit(CommandTokenizer args, boolean isReInit) {
     boolean wasSuccess = false;
-    if (args.length == 1) {
+    if (args.count() == 1) {
       if (isReInit) {
         commandListManager.resize();
       } else {
         commandListManager.init();
       }
       wasSuccess = true;
-    } else if (args.length == 3 || args.length == 4) {
+    } else if (args.count() == 3 || args.count() == 4) {
       int w = 100, h = 100, errCount = 0;
       wasSuccess = true;
       String err = "Error: ";
 
       try {
-        w = Integer.parseInt(args[1]);
+        w = args.getInt(1);
       } catch (NumberFormatException nfe) {
-        err += "w=" + args[1];
+        err += "w=" + args.get(1);
         wasSuccess = false;
         errCount++;
       }
 
       try {
-        h = Integer.parseInt(args[2]);
+        h = args.getInt(2);
       } catch (NumberFormatException nfe) {
         errCount++;
         if (!wasSuccess) {
           err += " and ";
         }
-        err += "h=" + args[2];
+        err += "h=" + args.get(2);
         wasSuccess = false;
       }
 
@@ -678,25 +1219,32 @@ public class CommandPromptPane extends NavigationFilter {
         }
       }
 
-      if (args.length == 4
-          && !Arrays.asList(CommandList.SIZE_RENDERERS).contains(args[3])) {
-        if (!wasSuccess) {
-          err += " and ";
+      String renderer = null;
+      if (args.count() == 4) {
+        for (String r : CommandList.SIZE_RENDERERS) {
+          if (args.equals(3, r)) {
+            renderer = r;
+          }
         }
-        wasSuccess = false;
-        err += "\"" + args[3] + "\" renderer is undefined (only ";
-        for (int i = 0; i < CommandList.SIZE_RENDERERS.length; i++) {
-          if (i != CommandList.SIZE_RENDERERS.length - 1) {
-            err += "\"" + CommandList.SIZE_RENDERERS[i] + "\", ";
-          } else {
-            err += "and \"" + CommandList.SIZE_RENDERERS[i] + "\"";
+        if (renderer == null) {
+          if (!wasSuccess) {
+            err += " and ";
           }
+          wasSuccess = false;
+          err += "\"" + args.get(3) + "\" renderer is undefined (only ";
+          for (int i = 0; i < CommandList.SIZE_RENDERERS.length; i++) {
+            if (i != CommandList.SIZE_RENDERERS.length - 1) {
+              err += "\"" + CommandList.SIZE_RENDERERS[i] + "\", ";
+            } else {
+              err += "and \"" + CommandList.SIZE_RENDERERS[i] + "\"";
+            }
+          }
+          err += " renderers may be used)";
         }
-        err += " renderers may be used)";
       }
 
       if (wasSuccess) {
-        if (args.length == 3) {
+        if (renderer == null) {
           if (isReInit) {
             commandListManager.resize(w, h);
           } else {
@@ -704,9 +1252,9 @@ public class CommandPromptPane extends NavigationFilter {
           }
         } else {
           if (isReInit) {
-            commandListManager.resize(w, h, args[3]);
+            commandListManager.resize(w, h, renderer);
           } else {
-            commandListManager.init(w, h, args[3]);
+            commandListManager.init(w, h, renderer);
           }
         }
       } else {
@@ -720,34 +1268,33 @@ public class CommandPromptPane extends NavigationFilter {
   /**
    * Handles the <code>undo</code> and the <code>redo</code> command words.
    * Along with a fair share of error handling.
-   * @param arg The string entered by the user which represents the 
-   * <code>undo</code>/<code>redo</code> command word
+   * @param args The words of the line entered by the user which represents
+   * the <code>undo</code>/<code>redo</code> command word
    * @param isRedo Whether the line passed corresponds to an <code>undo</code>
    * operation, or to a <code>redo</code> one.
    * @return True if the <code>undo</code>/<code>redo</code>operation was
    * successfully completed
    */
-  private boolean handleUndo(String arg, boolean isRedo) {
-    String[] undo = arg.split("\\s+");
+  private boolean handleUndo(CommandTokenizer args, boolean isRedo) {
     boolean wasSuccess = true;
     int k = 0;
-    if (undo.length == 1) {
+    if (args.count() == 1) {
       if (!isRedo) {
         k = commandListManager.undo(1);
       } else {
         k = commandListManager.redo(1);
       }
-    } else if (undo.length == 2) {
+    } else if (args.count() == 2) {
       int n;
       try {
-        n = Integer.parseInt(undo[1]);
+        n = args.getInt(1);
         if (!isRedo) {
           k = commandListManager.undo(n);
         } else {
           k = commandListManager.redo(n);
         }
       } catch (NumberFormatException nfe) {
-        printStatusMessage("Error: n=" + undo[1] + " is not an integer");
+        printStatusMessage("Error: n=" + args.get(1) + " is not an integer");
         wasSuccess = false;
       }
     } else {
@@ -770,31 +1317,70 @@ public class CommandPromptPane extends NavigationFilter {
     return wasSuccess;
   }
 
+  /**
+   * Handles the <code>branch</code> command word, listing the branches left
+   * behind, or moving to one of them.
+   * @param args The words of the line entered by the user which contains
+   * the <code>branch</code> command word
+   * @return True if the command list was moved to another branch
+   */
+  private boolean handleBranch(CommandTokenizer args) {
+    List<CommandState> branches = commandListManager.getBranches();
+    if (args.count() == 1) {
+      if (branches.isEmpty()) {
+        printStatusMessage("No branches left behind yet");
+      }
+      for (int i = 0; i < branches.size(); i++) {
+        CommandState branch = branches.get(i);
+        // Only the first line of a block
+        String last = branch.getStatement().split("\n", 2)[0];
+        printStatusMessage((i + 1) + ": " + branch.size() 
+            + (branch.size() == 1 ? " statement" : " statements")
+            + ", ending in " + last);
+      }
+      return false;
+    }
+    if (args.count() != 2) {
+      printStatusMessage("Error: branch command should have only 0 or 1 "
+          + "arguments");
+      return false;
+    }
+    int n;
+    try {
+      n = args.getInt(1);
+    } catch (NumberFormatException nfe) {
+      printStatusMessage("Error: x=" + args.get(1) + " is not an integer");
+      return false;
+    }
+    if (n < 1 || n > branches.size()) {
+      printStatusMessage("Error: there is no branch " + n 
+          + ". Type `branch` to list them.");
+      return false;
+    }
+    commandListManager.setState(branches.get(n - 1));
+    printStatusMessage("Moved to branch " + n);
+    return true;
+  }
+
   /**
    * Handles the <code>codify</code> command word. Also ensures that a 
    * parameter representing the function name is passed along with 
    * <code>codify</code>, and that the parameter is a valid function name.
-   * @param command The string entered by the user which contains the
-   * <code>codify</code> command word  
-   */
-  private void handleCodify(String command) {
-    String[] args = command.split("\\s+");
-    if (args.length != 2) {
-      if (args.length > 2) {
-        printStatusMessage("Error: codify should have only "
-            + "a single function name as argument");
-      } else {
-        printStatusMessage("Error: codify should have only "
-            + "a single function name as argument");
-      }
+   * @param args The words of the line entered by the user which contains
+   * the <code>codify</code> command word  
+   */
+  private void handleCodify(CommandTokenizer args) {
+    if (args.count() != 2) {
+      printStatusMessage("Error: codify should have only "
+          + "a single function name as argument");
     } else if (!commandListManager.hasStuffToCodify()) {
       printStatusMessage("Nothing to codify into a function yet.");
     } else {
-      if (!isValidFunctionName(args[1])) {
-        printStatusMessage("Error: \"" + args[1] + "\""
+      if (!args.isFunctionName(1)) {
+        printStatusMessage("Error: \"" + args.get(1) + "\""
             + " is not a valid function name");
       } else {
-        String code = commandListManager.getCodeFunction(args[1]);
+        String code = commandListManager.getCodeFunction(args.get(1));
         replEditor.setText(replEditor.getText() + "\n" + code);
       }
     }
@@ -805,79 +1391,24 @@ public class CommandPromptPane extends NavigationFilter {
    * another command valid word is passed along with <code>help</code>,  
    * it prints detailed information pertaining to that command word and its
    * usage. If not, it prints a list of valid command words. 
-   * @param command The string entered by the user which contains the
-   * <code>help</code> command word  
+   * @param args The words of the line entered by the user which contains
+   * the <code>help</code> command word  
    */
-  private void handleHelp(String command) {
-    String[] args = command.split("\\s+");
-    if (args.length == 1) {
+  private void handleHelp(CommandTokenizer args) {
+    if (args.count() == 1) {
       consoleArea.setTabSize(2);
       printStatusMessage("The following command words are available. "
           + "Type `help <commandword>` for more information on "
           + "each command word:\n"
-          + "* init\t* resize\t* clear\n"
-          + "* undo\t* redo  \t* codify\n"
-          + "* help\t* man");
-    }
-    else if (args.length == 2) {
-      if (Arrays.asList(CommandList.REPL_COMMAND_SET)
-          .contains(args[1])) {
-        if (args[1].equals(CommandList.CLEAR_COMMAND)) {
-          printStatusMessage("\nclear\n-----\nUsed to clear the REPL Console "
-              + "without affecting anything else");
-        } else if (args[1].equals(CommandList.INIT_COMMAND)) {
-          printStatusMessage("\ninit\n----\n"
-              + "Represents the first command issued to the REPL Mode "
-              + "Console, to initialize the it. Also used to pass in details "
-              + "about width and height of the sketch the console has to "
-              + "display. May take the following forms:\n"
-              + "* init: Initialize the console to display a 100x100 sketch \n"
-              + "* init w h: Initialize the console to display a sketch of "
-              + "width w and height h\n"
-              + "* init w h r: Initialize the console to display a sketch of "
-              + "width w and height h, and to use a renderer of type r "
-              + "(r = P2D or P3D)");
-        } else if (args[1].equals(CommandList.RESIZE_COMMAND)) {
-          printStatusMessage("\nresize\n------\n"
-              + "Allows the user to resize sketch that the REPL console "
-              + "displays without losing the contents of the sketch. Can be "
-              + "run in one of the following 3 ways, each similiar to their "
-              + "`init` counterparts:\n  "
-              + "* resize\n  "
-              + "* resize w h\n  "
-              + "* resize w h r");
-        } else if (args[1].equals(CommandList.UNDO_COMMAND)) {
-          printStatusMessage("\nundo\n----\n"
-              + "Used to undo a (set of) statement(s). Command statements "
-              + "cannot be undone. Can be called in one of 2 ways:\n"
-              + "* undo: Undoes the last valid statment.\n"
-              + "* undo x: Undoes the last x statements.");
-        } else if (args[1].equals(CommandList.REDO_COMMAND)) {
-          printStatusMessage("\nredo\n----\n"
-              + "Used to redo a (set of) statement(s). A redo can only be "
-              + "performed immendiately after an undo. Can be called in one "
-              + "of 2 ways:\n"
-              + "* redo: \"Redoes\" the last undo\n"
-              + "* redo x: \"Redoes\" the last x statements undone by an "
-              + "undo");
-        } else if (args[1].equals(CommandList.CODIFY_COMMAND)) {
-          printStatusMessage("\ncodify\n-----\n"
-              + "Adds a method of the void return type to the current tab, "
-              + "the method body consisting of all statements used to display "
-              + "the output visible at present (i.e., all statements from the "
-              + "last init, excluding those undone). Takes the format "
-              + "`codify x`, where x is a string representing the method "
-              + "name.");
-        } else if (args[1].equals(CommandList.HELP_COMMAND)) {
-          printStatusMessage("\nhelp(noun): something or someone that helps.\n"
-              + "  (Cambridge Dictionary)"
-              + "\nOK, so that wasn't very helpful...");
-        } else if (args[1].equals(CommandList.MAN_COMMAND)) {
-          printStatusMessage("\nman\n---\n???");
-        }
+          + getCommandTable(3));
+    }
+    else if (args.count() == 2) {
+      CommandRegistry.Command command = commands.get(args, 1);
+      if (command != null) {
+        printStatusMessage(command.getHelp());
       }
       else {
-        printStatusMessage("Invalid command word `"+ args[1] + "`");
+        printStatusMessage("Invalid command word `"+ args.get(1) + "`");
       }
     }
     else {
@@ -888,15 +1419,55 @@ public class CommandPromptPane extends NavigationFilter {
   }
 
   /**
-   * Function to check whether the string passed is a valid function name
-   * or not.
-   * @param fn The string whose validity as a function name is to be checked
-   * @return True iff <code>fn</code> is a valid name, false otherwise
+   * @param columns The number of command words to a row
+   * @return The command words, laid out in a table for <code>help</code>
+   */
+  private String getCommandTable(int columns) {
+    String[] words = commands.getWords();
+    int[] widths = new int[columns];
+    for (int i = 0; i < words.length; i++) {
+      widths[i % columns] = Math.max(widths[i % columns], words[i].length());
+    }
+    StringBuilder table = new StringBuilder();
+    for (int i = 0; i < words.length; i++) {
+      table.append("* ").append(words[i]);
+      if (i == words.length - 1) {
+        break;
+      }
+      if (i % columns == columns - 1) {
+        table.append('\n');
+      } else {
+        // Line the columns up, since the tabs alone can't be relied on to
+        for (int j = words[i].length(); j < widths[i % columns]; j++) {
+          table.append(' ');
+        }
+        table.append('\t');
+      }
+    }
+    return table.toString();
+  }
+
+  /**
+   * Handles the <code>stats</code> command word, which prints out a table of
+   * the time taken by each stage of running a statement (or throws the
+   * timings away, if followed by <code>clear</code>).
+   * @param args The words of the line entered by the user which contains
+   * the <code>stats</code> command word
    */
-  private boolean isValidFunctionName(String fn) {
-    // TODO: Is this correct?
-    Pattern FN_NAME_PATTERN = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
-    return FN_NAME_PATTERN.matcher(fn).find();
+  private void handleStats(CommandTokenizer args) {
+    if (args.count() == 1) {
+      printStatusMessage(latencyStats.getSummary());
+      if (replEditor != null) {
+        printStatusMessage("Evaluations waiting: " 
+            + replEditor.getEvaluationQueue().getQueueDepth());
+      }
+    } else if (args.count() == 2 && args.equals(1, "clear")) {
+      latencyStats.clear();
+      printStatusMessage("Timings cleared");
+    } else {
+      printStatusMessage("Error: stats takes either no arguments, "
+          + "or `clear`");
+    }
   }
 
   /**
@@ -911,14 +1482,165 @@ public class CommandPromptPane extends NavigationFilter {
    * as when a command word like <code>help</code> is entered)</li>
    * @param refresh Whether or not the REPL Console's sketch window has to be
    * closed and re-opened (such as if the size of the sketch window changes) 
+   * <p>
+   * Statements that are part of a batch (such as lines pasted in together),
+   * or that come in within {@link #BATCH_WINDOW_PREF} milliseconds of each
+   * other, are all run together once the last of them is in.
    */
   protected void runTempSketch(boolean error, boolean refresh) {
     if (replEditor != null && !error) {
+      isRunPending = true;
+      isRefreshPending |= refresh;
+      if (batchDepth > 0) {
+        // Run once the whole batch is in
+        return;
+      }
+      int batchWindow = getBatchWindow();
+      if (batchWindow <= 0) {
+        runPendingStatements();
+      } else {
+        if (batchTimer == null) {
+          batchTimer = new Timer(batchWindow, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+              runPendingStatements();
+            }
+          });
+          batchTimer.setRepeats(false);
+        }
+        batchTimer.setInitialDelay(batchWindow);
+        batchTimer.restart();
+      }
+    }
+  }
+
+  /**
+   * Runs the REPL Console's sketch with all the statements entered so far,
+   * if there are any that haven't been run yet
+   */
+  protected void runPendingStatements() {
+    if (batchTimer != null) {
+      batchTimer.stop();
+    }
+    if (!isRunPending) {
+      return;
+    }
+    boolean refresh = isRefreshPending;
+    isRunPending = false;
+    isRefreshPending = false;
+    try {
+      long sourceStart = System.nanoTime();
+      String code = commandListManager.getREPLSketchCode();
+      latencyStats.recordSince(REPLLatencyStats.SOURCE, sourceStart);
+      replEditor.handleREPLRun(code, refresh);
+    } catch (Exception exc) {
+      exc.printStackTrace();
+    }
+  }
+
+  /**
+   * Marks the start of a batch of statements that are to be run together
+   */
+  protected void beginBatch() {
+    batchDepth++;
+  }
+
+  /**
+   * Marks the end of a batch of statements, running them all if this was
+   * the outermost batch
+   */
+  protected void endBatch() {
+    batchDepth--;
+    if (batchDepth == 0) {
+      runPendingStatements();
+    }
+  }
+
+  /**
+   * @return How long (in milliseconds) to wait for more statements before
+   * running the REPL Console's sketch
+   */
+  static int getBatchWindow() {
+    try {
+      return Preferences.getInteger(BATCH_WINDOW_PREF);
+    } catch (NumberFormatException e) {
+      return DEFAULT_BATCH_WINDOW;
+    }
+  }
+
+  /**
+   * Handles text pasted into the REPL Console. Text without a line break is
+   * simply pasted in at the caret (replacing the selection, if any). Text
+   * with line breaks has each complete line entered just as if the user had
+   * typed it in and hit Enter, except that the sketch is only built and run
+   * once, after the last of them. The first line goes in at the caret, and
+   * whatever followed the caret is left at the prompt after the last line.
+   * @param text The text pasted in
+   */
+  protected void handlePaste(String text) {
+    // Keep the paste within the part of the console that can be edited
+    int editStart = rowStartPosition + prefixLength;
+    int length = consoleArea.getDocument().getLength();
+    int selectionEnd = consoleArea.getSelectionEnd();
+    if (selectionEnd < editStart || editStart > length) {
+      consoleArea.setCaretPosition(length);
+    } else if (consoleArea.getSelectionStart() < editStart) {
+      consoleArea.select(editStart, selectionEnd);
+    }
+
+    if (text.indexOf('\n') == -1 && text.indexOf('\r') == -1) {
+      consoleArea.replaceSelection(text);
+      return;
+    }
+
+    String[] lines = text.split("\r?\n|\r", -1);
+    Document doc = consoleArea.getDocument();
+    String rest;
+    try {
+      int restStart = consoleArea.getSelectionEnd();
+      rest = doc.getText(restStart, doc.getLength() - restStart);
+      doc.remove(restStart, doc.getLength() - restStart);
+    } catch (BadLocationException e) {
+      e.printStackTrace();
+      return;
+    }
+
+    beginBatch();
+    try {
+      consoleArea.replaceSelection(lines[0]);
+      for (int i = 1; i < lines.length; i++) {
+        enterAction.actionPerformed(new ActionEvent(consoleArea, 
+            ActionEvent.ACTION_PERFORMED, "paste"));
+        consoleArea.setCaretPosition(doc.getLength());
+        consoleArea.replaceSelection(lines[i]);
+      }
+      int caret = doc.getLength();
+      consoleArea.replaceSelection(rest);
+      consoleArea.setCaretPosition(caret);
+    } finally {
+      endBatch();
+    }
+  }
+
+  /**
+   * Handles the user pasting something in, either with a keyboard shortcut
+   * or from the right-click menu
+   * @author Joel Moniz
+   */
+  class PasteAction extends AbstractAction {
+    private static final long serialVersionUID = -6148362640364546416L;
+
+    public void actionPerformed(ActionEvent e) {
+      if (isMarked) {
+        return;
+      }
       try {
-        String code = commandListManager.getREPLSketchCode();
-        replEditor.handleREPLRun(code, refresh);
-      } catch (Exception exc) {
-        exc.printStackTrace();
+        String text = (String) consoleArea.getToolkit().getSystemClipboard()
+            .getData(DataFlavor.stringFlavor);
+        handlePaste(text);
+      } catch (UnsupportedFlavorException e1) {
+        // Nothing textual to paste
+      } catch (IOException e1) {
+        e1.printStackTrace();
       }
     }
   }
@@ -943,6 +1665,7 @@ public class CommandPromptPane extends NavigationFilter {
     public void actionPerformed(ActionEvent e) {
       String cycledCommand = "";
       JTextArea component = (JTextArea) e.getSource();
+      endSearch();
       String prevCommand = getLastLine();
       
       /*
@@ -970,21 +1693,84 @@ public class CommandPromptPane extends NavigationFilter {
        * Replace everything from the end of the last prompt to the end of the
        * last line with text from the appropriate point in command history
        */
-      if (isContinuing) {
-        component.replaceRange(cycledCommand,
-                               component.getText()
-                                   .lastIndexOf(promptContinuation)
-                                   + promptContinuation.length(), component
-                                   .getText().length());
+      component.replaceRange(cycledCommand, getInputStart(),
+                             component.getDocument().getLength());
+    }
+  }
+
+  /**
+   * Handles Ctrl+R, which starts a search back through the command history,
+   * or, if already searching, finds the next older match
+   * @author Joel Moniz
+   */
+  class SearchAction extends AbstractAction {
+    private static final long serialVersionUID = -2170326342409733186L;
+
+    public void actionPerformed(ActionEvent e) {
+      if (isMarked) {
+        return;
+      }
+      if (!isSearching) {
+        isSearching = true;
+        searchQuery.setLength(0);
+        searchMatch = commandHistManager.size();
+        commandHistManager.resetCommandCycle();
+        showSearchStatus(true);
       } else {
-        component.replaceRange(cycledCommand,
-                               component.getText().lastIndexOf(prompt)
-                                   + prompt.length(), component.getText()
-                                   .length());
+        searchHistory(searchMatch);
+      }
+    }
+  }
+
+  /**
+   * Finds the most recent command containing the search query, before the
+   * given index in the command history, and puts it on the input line
+   * @param before Only commands before this index are looked at
+   */
+  protected void searchHistory(int before) {
+    int match = 
+        commandHistManager.findPrevious(searchQuery.toString(), before);
+    if (match >= 0) {
+      searchMatch = match;
+      consoleArea.replaceRange(commandHistManager.getCommand(match),
+                               getInputStart(),
+                               consoleArea.getDocument().getLength());
+    }
+    showSearchStatus(match >= 0 || searchQuery.length() == 0);
+  }
+
+  /**
+   * Stops searching through the command history, leaving whatever was
+   * found on the input line
+   */
+  protected void endSearch() {
+    if (isSearching) {
+      isSearching = false;
+      if (replEditor != null) {
+        replEditor.statusEmpty();
       }
     }
   }
 
+  /**
+   * Shows what is being searched for in the editor's status area
+   * @param found Whether a command containing it was found
+   */
+  private void showSearchStatus(boolean found) {
+    if (replEditor != null) {
+      replEditor.statusNotice((found ? "" : "failed ") 
+          + "reverse-i-search: `" + searchQuery + "'");
+    }
+  }
+
+  /**
+   * @return The timings of each stage of running the statements entered in
+   * this REPL Console
+   */
+  public REPLLatencyStats getLatencyStats() {
+    return latencyStats;
+  }
+
   /**
    * Prints a status message on a new line
    * 
@@ -1019,6 +1805,17 @@ public class CommandPromptPane extends NavigationFilter {
      * textarea.getLineStopOffset(line) - 1); } } }
      */
 
+    String mess = getErrorMessage(e);
+    if (mess != null) {
+      printStatusError(mess);
+    }
+  }
+
+  /**
+   * @return The message of <code>e</code>, with the bits that are of no use
+   * to most users trimmed off, or null if it has no message
+   */
+  private String getErrorMessage(Exception e) {
     /*
      * Since this will catch all Exception types, spend some time figuring out
      * which kind and try to give a better error message to the user.
@@ -1039,9 +1836,8 @@ public class CommandPromptPane extends NavigationFilter {
       if (mess.startsWith(illString)) {
         mess = mess.substring(illString.length());
       }
-
-      printStatusError(mess);
     }
+    return mess;
   }
 
   /**
@@ -1060,9 +1856,9 @@ public class CommandPromptPane extends NavigationFilter {
     consoleArea.setSelectionStart(currPos - currPrefixLength);
     consoleArea.setSelectionEnd(currPos);
     printStatusMessage("Error: " + mess);
-    consoleArea.setCaretPosition(consoleArea.getText().length());
-    consoleArea.replaceSelection(prompt);
-    consoleArea.setCaretPosition(consoleArea.getText().length());
+    consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
+    printPrompt(prompt);
+    consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
     prefixLength = prompt.length();
     try {
       rowStartPosition = Math.max(rowStartPosition, Utilities
@@ -1084,6 +1880,52 @@ public class CommandPromptPane extends NavigationFilter {
     undoLastStatement();
   }
 
+  /**
+   * Handles an error in building the REPL Console's sketch. If several
+   * statements were run together, the one that the error is in is worked
+   * out from the line the error is on, and only that statement is left out:
+   * the rest are run again. Otherwise, this is the same as
+   * {@link #handleException(Exception)}. May be called from any thread.
+   * @param e The error
+   * @param code The code of the sketch that failed to build
+   */
+  public void handleBuildError(final SketchException e, final String code) {
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        int index = getStatementInError(e, code);
+        if (index < 0 || index == commandListManager.getStatementCount() - 1) {
+          handleException(e);
+          return;
+        }
+        String removed = commandListManager.removeStatement(index);
+        String mess = getErrorMessage(e);
+        printStatusError((mess == null ? "" : mess + "\n") 
+            + "`" + removed.trim() + "` has been left out");
+        // The statements after it still need to be run
+        runTempSketch(false, false);
+      }
+    });
+  }
+
+  /**
+   * @return The index in the command list of the statement that
+   * <code>e</code> was caused by, or -1 if that can't be worked out (such
+   * as if the statements in <code>code</code> have since been undone)
+   */
+  private int getStatementInError(SketchException e, String code) {
+    if (code == null || !e.hasCodeLine()) {
+      return -1;
+    }
+    String currentCode = commandListManager.getREPLSketchCode();
+    // Statements may have been added since code was built, but nothing in
+    // it may have changed. The code ends with the closing brace of draw().
+    if (currentCode == null 
+        || !currentCode.startsWith(code.substring(0, code.length() - 1))) {
+      return -1;
+    }
+    return commandListManager.getStatementAtLine(e.getCodeLine());
+  }
+
   /**
    * Handles an error by printing the error in the REPL Console and undoing the
    * statement that caused the error (which, by virtue of how things are
@@ -1100,16 +1942,133 @@ public class CommandPromptPane extends NavigationFilter {
    * is on
    */
   public String getLastLine() {
-    // TODO: Is there a more efficient way of extracting the last line of code?
-    int lineStartLocation;
-    if (isContinuing) {
-      lineStartLocation = consoleArea.getText().lastIndexOf(promptContinuation)
-          + promptContinuation.length();
-    } else {
-      lineStartLocation = consoleArea.getText().lastIndexOf(prompt)
-          + prompt.length();
+    Document doc = consoleArea.getDocument();
+    int lineStartLocation = getInputStart();
+    try {
+      return doc.getText(lineStartLocation, 
+                         doc.getLength() - lineStartLocation);
+    } catch (BadLocationException e) {
+      e.printStackTrace();
+      return "";
+    }
+  }
+
+  /**
+   * Arranges for the oldest lines in the REPL Console to be thrown away if
+   * there are too many of them. Lines are only thrown away once there are
+   * a tenth more than {@link #SCROLLBACK_PREF} of them, so that the trimming
+   * happens in batches, rather than on every line printed.
+   */
+  protected void checkScrollback() {
+    if (isTrimPending) {
+      return;
+    }
+    int limit = getScrollbackLimit();
+    int lines = consoleArea.getDocument().getDefaultRootElement()
+        .getElementCount();
+    if (lines > limit + Math.max(limit / 10, 1)) {
+      // The document can't be changed from within one of its listeners
+      isTrimPending = true;
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          trimScrollback();
+        }
+      });
+    }
+  }
+
+  /**
+   * Throws away the oldest lines in the REPL Console, leaving
+   * {@link #SCROLLBACK_PREF} of them. The line the user is typing on is
+   * never touched.
+   */
+  protected void trimScrollback() {
+    isTrimPending = false;
+    if (isMarked) {
+      // Don't pull the text out from under a selection; try again later
+      return;
+    }
+    Document doc = consoleArea.getDocument();
+    Element root = doc.getDefaultRootElement();
+    // The limit may have been lowered since the trim was arranged, but the
+    // last line always stays
+    int excess = Math.min(root.getElementCount() - getScrollbackLimit(),
+                          root.getElementCount() - 1);
+    if (excess <= 0) {
+      return;
+    }
+    int end = Math.min(root.getElement(excess).getStartOffset(), 
+                       rowStartPosition);
+    if (end <= 0) {
+      return;
+    }
+    try {
+      doc.remove(0, end);
+      rowStartPosition -= end;
+    } catch (BadLocationException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @return The number of lines the REPL Console keeps, which is at least 1
+   */
+  static int getScrollbackLimit() {
+    try {
+      int limit = Preferences.getInteger(SCROLLBACK_PREF);
+      return (limit >= 1) ? limit : DEFAULT_SCROLLBACK;
+    } catch (NumberFormatException e) {
+      return DEFAULT_SCROLLBACK;
     }
-    return consoleArea.getText().substring(lineStartLocation);
+  }
+
+  /**
+   * Prints a prompt at the caret (which is always at the end of the REPL
+   * Console when a prompt is printed), and marks the end of it as where the
+   * user's input starts.
+   * @param promptString Either the prompt or the prompt continuation string
+   */
+  protected void printPrompt(String promptString) {
+    consoleArea.replaceSelection(promptString);
+    markInputStart();
+  }
+
+  /**
+   * Prints the prompt, or the prompt continuation string if the user is in
+   * the midst of entering a statement block.
+   */
+  protected void printPrompt() {
+    printPrompt(isContinuing ? promptContinuation : prompt);
+  }
+
+  /**
+   * Marks the end of the REPL Console as where the user's input starts. To
+   * be called right after a prompt has been printed.
+   */
+  protected void markInputStart() {
+    Document doc = consoleArea.getDocument();
+    try {
+      /*
+       * Text inserted at a Position pushes it along, so typing at the start
+       * of the input would move it. The last character of the prompt is
+       * marked instead, which stays put no matter what is typed after it.
+       */
+      inputStart = doc.createPosition(Math.max(0, doc.getLength() - 1));
+    } catch (BadLocationException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @return The offset in the REPL Console at which the user's input (i.e.,
+   * the text following the last prompt) starts
+   */
+  protected int getInputStart() {
+    int length = consoleArea.getDocument().getLength();
+    if (inputStart == null) {
+      return length;
+    }
+    return Math.min(inputStart.getOffset() + 1, length);
   }
 
   /**
@@ -1119,14 +2078,14 @@ public class CommandPromptPane extends NavigationFilter {
     commandListManager.removePreviousStatement();
   }
 
-  /*
-   * Refer : http://stackoverflow.com/a/2750099/2427542 
-   * Refer : http://stackoverflow.com/a/13375811/2427542
-   */
   /**
-   * Use to get line number at which caret is placed.
-   * 
-   * Code adapted from http://java-sl.com/tip_row_column.html
+   * Use to get line number at which caret is placed. The line number starts
+   * with 1.
+   * <p>
+   * The document keeps an index of where each of its lines starts, which is
+   * updated as text goes in and out, so this is a binary search over the
+   * lines rather than a walk back through them. Lines are counted as they
+   * are in the document, no matter how many rows they are wrapped over.
    * 
    * @param console
    *          : The JTextArea console
@@ -1134,22 +2093,18 @@ public class CommandPromptPane extends NavigationFilter {
    */
   public static int getRow(JTextArea console) {
     int pos = console.getCaretPosition();
-    int rn = (pos == 0) ? 1 : 0;
-    try {
-      int offs = pos;
-      while (offs > 0) {
-        offs = Utilities.getRowStart(console, offs) - 1;
-        rn++;
-      }
-    } catch (BadLocationException e) {
-      e.printStackTrace();
-    }
-    return rn;
+    return console.getDocument().getDefaultRootElement()
+        .getElementIndex(pos) + 1;
   }
 
+  /*
+   * Refer : http://stackoverflow.com/a/2750099/2427542 
+   * Refer : http://stackoverflow.com/a/13375811/2427542
+   */
   /**
    * Use to get location of column at which caret is placed. The column number
-   * starts with 1.
+   * starts with 1. If the line the caret is on is wrapped, this is the
+   * column within the row the caret is on.
    * 
    * Code adapted from http://java-sl.com/tip_row_column.html
    * 
@@ -1159,8 +2114,15 @@ public class CommandPromptPane extends NavigationFilter {
    */
   public static int getColumn(JTextArea console) {
     int pos = console.getCaretPosition();
+    Element root = console.getDocument().getDefaultRootElement();
+    int lineStart = root.getElement(root.getElementIndex(pos)).getStartOffset();
+    if (!console.getLineWrap()) {
+      return pos - lineStart + 1;
+    }
     try {
-      return pos - Utilities.getRowStart(console, pos) + 1;
+      // Only ever looks back as far as the start of the row
+      return pos - Math.max(lineStart, Utilities.getRowStart(console, pos)) 
+          + 1;
     } catch (BadLocationException e) {
       e.printStackTrace();
     }
@@ -1220,7 +2182,7 @@ public class CommandPromptPane extends NavigationFilter {
         public void actionPerformed(ActionEvent e) {
           consoleArea.setEditable(true);
           consoleArea.copy();
-          consoleArea.setCaretPosition(consoleArea.getText().length());
+          consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
           isMarked = false;
           isMoved = false;
         }
@@ -1235,7 +2197,7 @@ public class CommandPromptPane extends NavigationFilter {
           isMarked = true;
           consoleArea.selectAll();
           consoleArea.copy();
-          consoleArea.setCaretPosition(consoleArea.getText().length());
+          consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
         }
       });
       this.add(item);
@@ -1246,8 +2208,8 @@ public class CommandPromptPane extends NavigationFilter {
         @Override
         public void actionPerformed(ActionEvent e) {
           consoleArea.setEditable(true);
-          consoleArea.paste();
           isMarked = false;
+          pasteAction.actionPerformed(e);
         }
       });
       this.add(pasteMenu);
@@ -0,0 +1,172 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.Arrays;
+
+/**
+ * The command words that can be entered in the REPL Console, and what is
+ * done when each of them is entered. A new command word only has to be
+ * registered here to be picked up by the REPL Console (and listed by
+ * <code>help</code>). Command words from outside the REPL Mode come in
+ * as {@link ReplCommand}s.
+ * <p>
+ * Command words are looked up straight from the words of a
+ * {@link CommandTokenizer}, without the first word of the line ever being
+ * turned into a string. There are only ever a handful of them, so they
+ * are simply kept in an array, in the order they were registered.
+ *
+ * @author Joel Moniz
+ */
+public class CommandRegistry {
+
+  /**
+   * Returned by a command that leaves the sketch as it was, or that didn't
+   * go through
+   */
+  public static final int NO_CHANGE = 0;
+
+  /**
+   * Returned by a command after which the sketch has to be run again
+   */
+  public static final int RUN = 1;
+
+  /**
+   * Returned by a command after which the sketch window has to be closed
+   * and opened again
+   */
+  public static final int REFRESH = 2;
+
+  /**
+   * A command word, and what is done when it is entered
+   */
+  public static abstract class Command {
+
+    /**
+     * The command word
+     */
+    final String word;
+
+    public Command(String word) {
+      this.word = word;
+    }
+
+    /**
+     * @return The command word
+     */
+    public String getWord() {
+      return word;
+    }
+
+    /**
+     * @return True if the command can be entered while the user is in the
+     * midst of entering a statement block
+     */
+    public boolean isAllowedInBlock() {
+      return false;
+    }
+
+    /**
+     * @return True if {@link #run(String, CommandTokenizer)} can be called
+     * on the EDT. If false, it is called on a background thread, where it
+     * mustn't touch the REPL Console (not even to print the prompt, which
+     * is done for it once it is done).
+     */
+    public boolean isEdtSafe() {
+      return true;
+    }
+
+    /**
+     * @return A detailed description of the command and its usage, shown
+     * by <code>help &lt;commandword&gt;</code>
+     */
+    public abstract String getHelp();
+
+    /**
+     * Does whatever the command does.
+     * @param command The line the command was entered on, trimmed
+     * @param args The words of <code>command</code>, the first being the
+     * command word itself
+     * @return One of {@link CommandRegistry#NO_CHANGE},
+     * {@link CommandRegistry#RUN} or {@link CommandRegistry#REFRESH}
+     */
+    public abstract int run(String command, CommandTokenizer args);
+  }
+
+  Command[] commands;
+
+  int count;
+
+  public CommandRegistry() {
+    commands = new Command[16];
+    count = 0;
+  }
+
+  /**
+   * Adds a command word. A command already registered with the same word
+   * is replaced.
+   * @param command The command
+   */
+  public void register(Command command) {
+    for (int i = 0; i < count; i++) {
+      if (commands[i].word.equals(command.word)) {
+        commands[i] = command;
+        return;
+      }
+    }
+    if (count == commands.length) {
+      commands = Arrays.copyOf(commands, count * 2);
+    }
+    commands[count++] = command;
+  }
+
+  /**
+   * @param args The words of a line
+   * @param i The index of the word to look up
+   * @return The command whose command word is word <code>i</code> of
+   * <code>args</code>, or null if it isn't a command word
+   */
+  public Command get(CommandTokenizer args, int i) {
+    if (i >= args.count()) {
+      return null;
+    }
+    for (int j = 0; j < count; j++) {
+      if (args.equals(i, commands[j].word)) {
+        return commands[j];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return All the command words, in the order they were registered
+   */
+  public String[] getWords() {
+    String[] words = new String[count];
+    for (int i = 0; i < count; i++) {
+      words[i] = commands[i].word;
+    }
+    return words;
+  }
+}
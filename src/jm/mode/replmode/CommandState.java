@@ -0,0 +1,150 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+/**
+ * One state of the {@link CommandList}: the statements entered since the
+ * last <code>init</code>, up to and including this one. States are never
+ * changed once made. A new statement makes a new state pointing back at
+ * the one before it, so every state shares all its statements but the last
+ * with its parent, and all the states since an <code>init</code> together
+ * make up a tree.
+ * <p>
+ * Undoing a statement is then just a matter of moving back to the parent
+ * state, and redoing it of moving forward again to the state it was undone
+ * from (which the {@link CommandList} keeps, since a state only knows its
+ * parent). Each is a single step. Since nothing is ever copied, any number
+ * of earlier states (such as the branches left behind by undoing and then
+ * entering something else) can be held on to for next to nothing. Taking
+ * the command list to one of them means finding where the two part ways,
+ * which takes as many steps as the states are deep.
+ *
+ * @author Joel Moniz
+ */
+public class CommandState {
+
+  /**
+   * The last statement in this state, or null for the empty state
+   */
+  final String statement;
+
+  /**
+   * The state before <code>statement</code> was added, or null for the
+   * empty state
+   */
+  final CommandState parent;
+
+  /**
+   * Number of statements in this state
+   */
+  final int size;
+
+  /**
+   * Creates an empty state
+   */
+  public CommandState() {
+    this(null, null);
+  }
+
+  private CommandState(String statement, CommandState parent) {
+    this.statement = statement;
+    this.parent = parent;
+    size = (parent == null) ? 0 : parent.size + 1;
+  }
+
+  /**
+   * @param stmt A statement
+   * @return A new state with <code>stmt</code> added to the end of this one
+   */
+  public CommandState add(String stmt) {
+    return new CommandState(stmt, this);
+  }
+
+  /**
+   * @return The last statement in this state, or null if it is empty
+   */
+  public String getStatement() {
+    return statement;
+  }
+
+  /**
+   * @return The state without the last statement, or null if this state is
+   * empty
+   */
+  public CommandState getParent() {
+    return parent;
+  }
+
+  /**
+   * @return The number of statements in this state
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The state with only the first <code>size</code> statements of
+   * this one
+   */
+  public CommandState getAncestor(int size) {
+    CommandState state = this;
+    while (state.size > size) {
+      state = state.parent;
+    }
+    return state;
+  }
+
+  /**
+   * @return The state that this state and <code>other</code> both started
+   * out from, or null if they aren't from the same tree
+   */
+  public CommandState getCommonAncestor(CommandState other) {
+    CommandState a = getAncestor(other.size);
+    CommandState b = other.getAncestor(size);
+    while (a != b) {
+      a = a.parent;
+      b = b.parent;
+    }
+    return a;
+  }
+
+  /**
+   * @return True if this state is <code>other</code>, or one of the states
+   * <code>other</code> started out from
+   */
+  public boolean isAncestorOf(CommandState other) {
+    return other.size >= size && other.getAncestor(size) == this;
+  }
+
+  /**
+   * @return The statements in this state, oldest first
+   */
+  public String[] getStatements() {
+    String[] statements = new String[size];
+    for (CommandState s = this; s.size > 0; s = s.parent) {
+      statements[s.size - 1] = s.statement;
+    }
+    return statements;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A table of distinct commands, each stored once and known by an id. The
+ * same handful of commands (<code>init</code>, <code>undo</code>,
+ * <code>clear</code>, the same drawing call tweaked and re-entered) make up
+ * most of a long session, so the history only keeps the id of each command
+ * it holds, and looks the text up here.
+ * <p>
+ * The text of all the commands is packed, as UTF-8, one after the other
+ * into a single buffer, so that a command costs little more than its
+ * length, without a <code>String</code> (or even an array) of its own. Ids
+ * are handed out in order, starting at 0, and are looked up by content
+ * through an open-addressed hash table of ids, so that no boxed keys or map
+ * entries are needed either.
+ *
+ * @author Joel Moniz
+ */
+public class CommandTable {
+
+  /**
+   * The text of all the commands, one after the other
+   */
+  byte[] text;
+
+  /**
+   * The command with id <code>i</code> takes up <code>text[starts[i]]</code>
+   * to <code>text[starts[i + 1] - 1]</code>
+   */
+  int[] starts;
+
+  /**
+   * Number of commands in the table
+   */
+  int count;
+
+  /**
+   * Hash table of <code>id + 1</code>, with 0 for an empty slot. Always at
+   * most half full, and its length is a power of 2.
+   */
+  int[] slots;
+
+  public CommandTable() {
+    text = new byte[256];
+    starts = new int[17];
+    count = 0;
+    slots = new int[32];
+  }
+
+  /**
+   * @return The number of distinct commands in the table
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Adds a command to the table, if it isn't there already.
+   * @param command The command
+   * @return The id of the command
+   */
+  public int intern(String command) {
+    byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+    int mask = slots.length - 1;
+    int slot = hash(bytes, 0, bytes.length) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (equals(id, bytes)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    int start = starts[count];
+    if (start + bytes.length > text.length) {
+      text = Arrays.copyOf(text, 
+                           Math.max(text.length + (text.length >> 1),
+                                    start + bytes.length));
+    }
+    if (count + 1 == starts.length) {
+      starts = Arrays.copyOf(starts, starts.length + (starts.length >> 1));
+    }
+    System.arraycopy(bytes, 0, text, start, bytes.length);
+    int id = count++;
+    starts[count] = start + bytes.length;
+    slots[slot] = id + 1;
+    if (count * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return id;
+  }
+
+  /**
+   * @param id The id of a command in the table
+   * @return The command
+   */
+  public String get(int id) {
+    return new String(text, starts[id], starts[id + 1] - starts[id],
+                      StandardCharsets.UTF_8);
+  }
+
+  private boolean equals(int id, byte[] bytes) {
+    int start = starts[id];
+    if (starts[id + 1] - start != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (text[start + i] != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash(int length) {
+    slots = new int[length];
+    int mask = length - 1;
+    for (int id = 0; id < count; id++) {
+      int slot = hash(text, starts[id], starts[id + 1]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id + 1;
+    }
+  }
+
+  /**
+   * @return A hash of <code>bytes[from]</code> to
+   * <code>bytes[to - 1]</code>, with its bits well spread, so that texts
+   * differing only near their ends don't all land in the same part of the
+   * table
+   */
+  private static int hash(byte[] bytes, int from, int to) {
+    int hash = 1;
+    for (int i = from; i < to; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,172 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.Arrays;
+
+/**
+ * Splits a line entered in the REPL Console into words, in a single pass
+ * and without creating any strings. The words are only ever turned into
+ * strings if someone asks for them with {@link #get(int)}. The same
+ * tokenizer is meant to be used for line after line.
+ *
+ * @author Joel Moniz
+ */
+public class CommandTokenizer {
+
+  /**
+   * The line last split up
+   */
+  CharSequence line;
+
+  /**
+   * Word <code>i</code> takes up <code>line</code> from
+   * <code>starts[i]</code> up to (but not including) <code>ends[i]</code>
+   */
+  int[] starts;
+
+  int[] ends;
+
+  /**
+   * Number of words in the line
+   */
+  int count;
+
+  public CommandTokenizer() {
+    line = "";
+    starts = new int[8];
+    ends = new int[8];
+    count = 0;
+  }
+
+  /**
+   * Splits up a line into the words in it, which are separated by
+   * whitespace.
+   * @param line The line
+   * @return The number of words in the line
+   */
+  public int tokenize(CharSequence line) {
+    this.line = line;
+    count = 0;
+    int length = line.length();
+    int i = 0;
+    while (i < length) {
+      while (i < length && Character.isWhitespace(line.charAt(i))) {
+        i++;
+      }
+      if (i == length) {
+        break;
+      }
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      starts[count] = i;
+      while (i < length && !Character.isWhitespace(line.charAt(i))) {
+        i++;
+      }
+      ends[count++] = i;
+    }
+    return count;
+  }
+
+  /**
+   * @return The number of words in the line
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * @return True if word <code>i</code> is <code>word</code>
+   */
+  public boolean equals(int i, String word) {
+    int length = ends[i] - starts[i];
+    if (length != word.length()) {
+      return false;
+    }
+    for (int j = 0; j < length; j++) {
+      if (line.charAt(starts[i] + j) != word.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return Word <code>i</code>, as a string
+   */
+  public String get(int i) {
+    return line.subSequence(starts[i], ends[i]).toString();
+  }
+
+  /**
+   * Parses word <code>i</code> as a decimal integer, just as
+   * {@link Integer#parseInt(String)} would.
+   * @throws NumberFormatException If the word isn't an <code>int</code>
+   */
+  public int getInt(int i) {
+    int start = starts[i];
+    int end = ends[i];
+    boolean isNegative = false;
+    if (line.charAt(start) == '-' || line.charAt(start) == '+') {
+      isNegative = line.charAt(start) == '-';
+      start++;
+    }
+    if (start == end) {
+      throw new NumberFormatException("For input string: \"" + get(i) + "\"");
+    }
+    // Worked out as a negative number, which has room for Integer.MIN_VALUE
+    long value = 0;
+    for (int j = start; j < end; j++) {
+      int digit = Character.digit(line.charAt(j), 10);
+      value = value * 10 - digit;
+      if (digit < 0 || value < Integer.MIN_VALUE) {
+        throw new NumberFormatException("For input string: \"" 
+            + get(i) + "\"");
+      }
+    }
+    if (!isNegative && value == Integer.MIN_VALUE) {
+      throw new NumberFormatException("For input string: \"" + get(i) + "\"");
+    }
+    return (int) (isNegative ? value : -value);
+  }
+
+  /**
+   * @return True if word <code>i</code> is a valid name for a function: a
+   * letter or underscore, followed by any number of letters, digits and
+   * underscores
+   */
+  public boolean isFunctionName(int i) {
+    for (int j = starts[i]; j < ends[i]; j++) {
+      char c = line.charAt(j);
+      boolean isLetter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+          || c == '_';
+      if (!isLetter && (j == starts[i] || c < '0' || c > '9')) {
+        return false;
+      }
+    }
+    return ends[i] > starts[i];
+  }
+}
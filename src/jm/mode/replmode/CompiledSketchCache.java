@@ -0,0 +1,283 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import processing.app.Preferences;
+import processing.app.Util;
+import processing.mode.java.JavaBuild;
+
+/**
+ * Cache of the compiled output of the REPL Console's sketch, keyed by a hash
+ * of the sketch's code. Users tend to go back to code they've already run
+ * (an <code>undo</code> followed by a <code>redo</code>, cycling through the
+ * command history and re-entering a statement, etc.), and when they do, the
+ * class files can simply be copied back into the bin folder instead of
+ * running the preprocessor and the compiler all over again.
+ * <p>
+ * Each entry is a folder (named after the hash) under the cache folder,
+ * holding a copy of the class files. The least recently used entries are
+ * thrown out once there are more than {@link #CACHE_SIZE_PREF} of them, or
+ * once they take up more than {@link #MAX_CACHE_BYTES} between them.
+ *
+ * @author Joel Moniz
+ */
+public class CompiledSketchCache {
+
+  /**
+   * Preference used to store the maximum number of builds kept in the cache
+   */
+  public static final String CACHE_SIZE_PREF = "repl.build_cache.size";
+
+  /**
+   * Maximum number of builds kept if the user hasn't said otherwise
+   */
+  public static final int DEFAULT_CACHE_SIZE = 64;
+
+  /**
+   * Maximum space (in bytes) the cached class files may take up
+   */
+  public static final long MAX_CACHE_BYTES = 32L * 1024 * 1024;
+
+  /**
+   * A single cached build
+   */
+  static class Entry {
+    /**
+     * Folder holding the cached class files
+     */
+    final File folder;
+
+    /**
+     * The build that produced the class files. Needed to launch a new
+     * sketch VM from them, since it knows the class path, the sketch's main
+     * class, etc.
+     */
+    final JavaBuild build;
+
+    /**
+     * Space taken up by the class files
+     */
+    final long bytes;
+
+    Entry(File folder, JavaBuild build, long bytes) {
+      this.folder = folder;
+      this.build = build;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * The folder all entries are stored in
+   */
+  File cacheFolder;
+
+  /**
+   * Entries by hash, least recently used first
+   */
+  LinkedHashMap<String, Entry> entries;
+
+  /**
+   * Space taken up by all the entries together
+   */
+  long totalBytes;
+
+  int hits;
+
+  int misses;
+
+  public CompiledSketchCache(File cacheFolder) {
+    this.cacheFolder = cacheFolder;
+    entries = new LinkedHashMap<>(16, 0.75f, true);
+    totalBytes = 0;
+    hits = 0;
+    misses = 0;
+  }
+
+  /**
+   * @return The maximum number of builds the user would like cached
+   */
+  public static int getCacheSize() {
+    try {
+      return Math.max(0, Preferences.getInteger(CACHE_SIZE_PREF));
+    } catch (NumberFormatException e) {
+      return DEFAULT_CACHE_SIZE;
+    }
+  }
+
+  /**
+   * Copies the class files previously compiled from <code>code</code>, if
+   * any, into <code>binFolder</code>, in place of the class files already
+   * there (which may include classes the cached build doesn't have).
+   * @param code The code of the REPL Console's sketch
+   * @param binFolder The folder to copy the class files to
+   * @return The build the class files came from, or null if
+   * <code>code</code> isn't in the cache (in which case it has to be built)
+   */
+  public synchronized JavaBuild restore(String code, File binFolder) {
+    Entry entry = entries.get(getKey(code));
+    if (entry != null) {
+      try {
+        HotSwapStage.removeClassFiles(binFolder);
+        copyClassFiles(entry.folder, binFolder);
+        hits++;
+        return entry.build;
+      } catch (IOException e) {
+        e.printStackTrace();
+        remove(getKey(code));
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Saves a copy of the class files just compiled from <code>code</code>.
+   * @param code The code of the REPL Console's sketch
+   * @param binFolder The folder the class files were compiled to
+   * @param build The build that compiled them
+   */
+  public synchronized void store(String code, File binFolder,
+                                 JavaBuild build) {
+    int maxEntries = getCacheSize();
+    if (maxEntries == 0) {
+      return;
+    }
+    String key = getKey(code);
+    remove(key);
+
+    File folder = new File(cacheFolder, key);
+    try {
+      folder.mkdirs();
+      long bytes = copyClassFiles(binFolder, folder);
+      entries.put(key, new Entry(folder, build, bytes));
+      totalBytes += bytes;
+    } catch (IOException e) {
+      e.printStackTrace();
+      Util.removeDir(folder);
+      return;
+    }
+
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()
+        && (entries.size() > maxEntries || totalBytes > MAX_CACHE_BYTES)) {
+      Entry eldest = it.next().getValue();
+      it.remove();
+      totalBytes -= eldest.bytes;
+      Util.removeDir(eldest.folder);
+    }
+  }
+
+  /**
+   * Throws everything in the cache away.
+   */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      Util.removeDir(entry.folder);
+    }
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  public synchronized int getMisses() {
+    return misses;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      totalBytes -= entry.bytes;
+      Util.removeDir(entry.folder);
+    }
+  }
+
+  /**
+   * Copies the .class files (and the folders they are in, for classes in a
+   * package) from one folder to another.
+   * @return The number of bytes copied
+   */
+  private static long copyClassFiles(File from, File to) throws IOException {
+    long bytes = 0;
+    File[] files = from.listFiles();
+    if (files == null) {
+      throw new IOException("Could not read " + from);
+    }
+    for (File file : files) {
+      File target = new File(to, file.getName());
+      if (file.isDirectory()) {
+        target.mkdirs();
+        bytes += copyClassFiles(file, target);
+      } else if (file.getName().endsWith(".class")) {
+        Util.copyFile(file, target);
+        bytes += file.length();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @return The hash of <code>code</code>, with line endings and trailing
+   * whitespace (which make no difference to the compiled output) ironed out
+   */
+  static String getKey(String code) {
+    StringBuilder normalized = new StringBuilder(code.length());
+    for (String line : code.split("\r?\n")) {
+      int end = line.length();
+      while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+        end--;
+      }
+      normalized.append(line, 0, end).append('\n');
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash =
+          digest.digest(normalized.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder key = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        key.append(Character.forDigit((b >> 4) & 0xF, 16));
+        key.append(Character.forDigit(b & 0xF, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1
+      throw new Error(e);
+    }
+  }
+}
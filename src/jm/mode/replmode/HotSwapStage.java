@@ -0,0 +1,178 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import processing.app.Util;
+
+/**
+ * A folder the sketch is compiled to before its class files are handed over
+ * to the running sketch VM. The hot swapper redefines classes as soon as
+ * their class files change in the folder it keeps an eye on, so compiling
+ * straight into that folder would have it try a change it may not be able
+ * to make, and only then find out (by way of an
+ * <code>IllegalStateException</code> in the sketch VM) that the VM has to be
+ * restarted anyway.
+ * <p>
+ * Instead, the shapes of the freshly compiled classes (see
+ * {@link ClassShape}) are checked against the ones in the watched folder
+ * first, and only if they can all be redefined are the class files that
+ * changed copied over. Otherwise, the sketch VM is restarted straight
+ * away.
+ *
+ * @author Joel Moniz
+ */
+public class HotSwapStage {
+
+  /**
+   * The folder the sketch is compiled to
+   */
+  File stagingFolder;
+
+  /**
+   * The folder the hot swapper keeps an eye on, and which the sketch VM
+   * loads its classes from
+   */
+  File binFolder;
+
+  public HotSwapStage(File stagingFolder, File binFolder) {
+    this.stagingFolder = stagingFolder;
+    this.binFolder = binFolder;
+  }
+
+  /**
+   * @return The folder the sketch should be compiled to
+   */
+  public File getStagingFolder() {
+    return stagingFolder;
+  }
+
+  /**
+   * @return The folder the sketch VM loads its classes from
+   */
+  public File getBinFolder() {
+    return binFolder;
+  }
+
+  /**
+   * Compares the shapes of the classes just compiled against those that
+   * the sketch VM may have loaded.
+   * @return The name of a class which has changed shape, and so can't be
+   * hot swapped in, or null if everything can be hot swapped in
+   */
+  public String findChangedClass() {
+    try {
+      return ClassShape.findChangedClass(ClassShape.readFolder(binFolder),
+                                         ClassShape.readFolder(stagingFolder));
+    } catch (IOException e) {
+      // Can't tell, so play it safe
+      e.printStackTrace();
+      return stagingFolder.getName();
+    }
+  }
+
+  /**
+   * Hands the class files just compiled over to the sketch VM, by copying
+   * them to the folder it loads its classes from. Only the class files that
+   * have changed are copied, so that the hot swapper only redefines the
+   * classes that need it.
+   * @param isFresh True if a new sketch VM is about to be launched, in which
+   * case anything left over from earlier builds is cleared out first
+   * @throws IOException If the class files couldn't be copied
+   */
+  public void publish(boolean isFresh) throws IOException {
+    if (isFresh) {
+      removeClassFiles(binFolder);
+    }
+    copyChangedClassFiles(stagingFolder, binFolder);
+  }
+
+  /**
+   * Rewrites a class path, such as that of a build compiled to the staging
+   * folder, so that it loads classes from the bin folder instead.
+   * @param classPath The class path
+   * @return The class path, with the staging folder swapped out for the bin
+   * folder
+   */
+  public String toBinClassPath(String classPath) {
+    String[] paths = classPath.split(File.pathSeparator, -1);
+    String staging = stagingFolder.getAbsolutePath();
+    for (int i = 0; i < paths.length; i++) {
+      if (paths[i].equals(staging)) {
+        paths[i] = binFolder.getAbsolutePath();
+      }
+    }
+    StringBuilder rewritten = new StringBuilder(classPath.length());
+    for (int i = 0; i < paths.length; i++) {
+      if (i > 0) {
+        rewritten.append(File.pathSeparator);
+      }
+      rewritten.append(paths[i]);
+    }
+    return rewritten.toString();
+  }
+
+  private static void copyChangedClassFiles(File from,
+                                            File to) throws IOException {
+    File[] files = from.listFiles();
+    if (files == null) {
+      throw new IOException("Could not read " + from);
+    }
+    for (File file : files) {
+      File target = new File(to, file.getName());
+      if (file.isDirectory()) {
+        target.mkdirs();
+        copyChangedClassFiles(file, target);
+      } else if (file.getName().endsWith(".class") && !isSame(file, target)) {
+        Util.copyFile(file, target);
+      }
+    }
+  }
+
+  private static boolean isSame(File file, File target) throws IOException {
+    if (!target.exists() || target.length() != file.length()) {
+      return false;
+    }
+    return Arrays.equals(Files.readAllBytes(file.toPath()),
+                         Files.readAllBytes(target.toPath()));
+  }
+
+  static void removeClassFiles(File folder) {
+    File[] files = folder.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        removeClassFiles(file);
+      } else if (file.getName().endsWith(".class")) {
+        file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import processing.app.Library;
+import processing.app.SketchException;
+
+/**
+ * Index of the packages in the libraries the user has installed, so that an
+ * <code>import</code> entered in the REPL Console can be checked without
+ * going through the libraries folders on the EDT.
+ * <p>
+ * The index is built on a thread of its own when the mode is loaded, and
+ * built again whenever a library is added to or removed from one of the
+ * libraries folders, which are watched with a {@link WatchService}. Until
+ * the first build is done, {@link #isReady()} returns false, and lookups
+ * should go to the mode instead.
+ *
+ * @author Joel Moniz
+ */
+public class LibraryIndex {
+
+  /**
+   * How long (in milliseconds) the libraries folders have to be left alone
+   * before the index is built again. Installing a library touches plenty of
+   * files, and there is no sense in building the index for each of them.
+   */
+  static final long SETTLE_TIME = 500;
+
+  /**
+   * The folders the libraries are installed in
+   */
+  File[] folders;
+
+  /**
+   * The libraries each package belongs to, or null until the index has
+   * been built
+   */
+  volatile Map<String, List<Library>> packages;
+
+  /**
+   * Builds the index, and warms up libraries
+   */
+  ThreadPoolExecutor indexer;
+
+  /**
+   * Keeps an eye on the libraries folders
+   */
+  WatchService watcher;
+
+  /**
+   * @param folders The folders the libraries are installed in. Folders that
+   * are null or don't exist are left out.
+   */
+  public LibraryIndex(File... folders) {
+    this.folders = folders;
+    packages = null;
+    indexer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                                     new LinkedBlockingQueue<Runnable>(),
+                                     new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "REPL Library Index");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+    indexer.allowCoreThreadTimeOut(true);
+    watcher = null;
+  }
+
+  /**
+   * Builds the index in the background, and starts watching the libraries
+   * folders for changes.
+   */
+  public void start() {
+    rebuild();
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      for (File folder : folders) {
+        if (folder != null && folder.isDirectory()) {
+          folder.toPath().register(watcher,
+                                   StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_DELETE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+      }
+    } catch (IOException e) {
+      // The index is still built once; it just won't notice new libraries
+      e.printStackTrace();
+      return;
+    }
+
+    Thread watch = new Thread(new Runnable() {
+      public void run() {
+        watch();
+      }
+    }, "REPL Library Watcher");
+    watch.setDaemon(true);
+    watch.start();
+  }
+
+  /**
+   * @return True once the index has been built
+   */
+  public boolean isReady() {
+    return packages != null;
+  }
+
+  /**
+   * Looks up the library a package belongs to, just as
+   * {@link processing.app.Mode#getLibrary(String)} would.
+   * @param pkgName The name of the package
+   * @return The library, or null if no library has that package
+   * @throws SketchException If more than one library has that package
+   */
+  public Library getLibrary(String pkgName) throws SketchException {
+    Map<String, List<Library>> current = packages;
+    if (current == null) {
+      return null;
+    }
+    List<Library> libraries = current.get(pkgName);
+    if (libraries == null || libraries.isEmpty()) {
+      return null;
+    }
+    if (libraries.size() > 1) {
+      StringBuilder names = new StringBuilder();
+      for (Library library : libraries) {
+        names.append(names.length() == 0 ? "" : ", ")
+            .append(library.getName());
+      }
+      throw new SketchException("More than one library (" + names
+          + ") has the package " + pkgName);
+    }
+    return libraries.get(0);
+  }
+
+  /**
+   * Reads through the jars of a library in the background, so that they are
+   * already in the disk cache by the time the sketch that imports it is
+   * compiled and launched.
+   * @param library The library
+   */
+  public void warm(final Library library) {
+    indexer.execute(new Runnable() {
+      public void run() {
+        String classPath = library.getClassPath();
+        if (classPath == null) {
+          return;
+        }
+        for (String path : classPath.split(File.pathSeparator)) {
+          if (path.endsWith(".jar")) {
+            try (JarFile jar = new JarFile(path)) {
+              Enumeration<? extends ZipEntry> entries = jar.entries();
+              while (entries.hasMoreElements()) {
+                entries.nextElement();
+              }
+            } catch (IOException e) {
+              // The build will have its own say about a broken jar
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Builds the index again, in the background.
+   */
+  void rebuild() {
+    indexer.execute(new Runnable() {
+      public void run() {
+        Map<String, List<Library>> table = new HashMap<>();
+        for (File folder : folders) {
+          if (folder != null && folder.isDirectory()) {
+            for (Library library : Library.list(folder)) {
+              library.addPackageList(table);
+            }
+          }
+        }
+        packages = table;
+      }
+    });
+  }
+
+  /**
+   * Waits for changes to the libraries folders, and builds the index again
+   * once they have settled down.
+   */
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        do {
+          key.pollEvents();
+          key.reset();
+        } while ((key = watcher.poll(SETTLE_TIME, 
+                                     TimeUnit.MILLISECONDS)) != null);
+        rebuild();
+      }
+    } catch (InterruptedException e) {
+      // Nothing more to watch
+    } catch (ClosedWatchServiceException e) {
+      // Nothing more to watch
+    }
+  }
+}
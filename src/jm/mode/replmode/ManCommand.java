@@ -0,0 +1,62 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+/**
+ * The <code>man</code> command word. Plugged in through
+ * <code>META-INF/services</code>, just as any other {@link ReplCommand}
+ * would be.
+ *
+ * @author Joel Moniz
+ */
+public class ManCommand implements ReplCommand {
+
+  public String getWord() {
+    return CommandList.MAN_COMMAND;
+  }
+
+  public String getHelp() {
+    return "\nman\n---\n???";
+  }
+
+  public boolean isAllowedInBlock() {
+    return true;
+  }
+
+  public boolean isEdtSafe() {
+    return true;
+  }
+
+  public int run(String command, String[] args, ReplCommandContext context) {
+    /*
+     * Although the second sentence is the truth, the first is, well, a 
+     * poor little joke.
+     * And the only person who's likely to so much as smile at this little
+     *  pun is, well... me. Maybe. 
+     */
+    context.printMessage("Awwww `man`! This humble little mode is not "
+        + "worthy of having its own man pages. Maybe try `help` instead?");
+    return CommandRegistry.NO_CHANGE;
+  }
+}
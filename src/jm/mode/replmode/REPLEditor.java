@@ -38,7 +38,6 @@ import processing.app.Base;
 import processing.app.Mode;
 import processing.app.Platform;
 import processing.app.Preferences;
-import processing.app.RunnerListener;
 import processing.app.Sketch;
 import processing.app.SketchCode;
 import processing.app.SketchException;
@@ -48,7 +47,6 @@ import processing.app.ui.EditorFooter;
 import processing.app.ui.EditorState;
 import processing.mode.java.JavaBuild;
 import processing.mode.java.JavaEditor;
-import processing.mode.java.runner.Runner;
 
 /**
  * Handles the editor window including tool bar and menu. Has
@@ -79,8 +77,22 @@ public class REPLEditor extends JavaEditor {
 
   protected File untitledFolderLocation;
 
-  Runner replRuntime;
-  REPLRunner runtime;
+  /**
+   * The engine responsible for building and running the REPL Console's
+   * sketch
+   */
+  REPLEvaluator replEvaluator;
+
+  /**
+   * Runs evaluations of the REPL Console's sketch one after the other, on a
+   * thread of their own
+   */
+  REPLEvaluationQueue replQueue;
+
+  /**
+   * Warm VMs waiting to be used by the REPL Console's sketch
+   */
+  REPLVirtualMachinePool replVMPool;
 
   /**
    * The folder containing the intermediate .java files obtained by 
@@ -101,8 +113,24 @@ public class REPLEditor extends JavaEditor {
     super(base, path, state, mode);
 
     replMode = (REPLMode) mode;
-    replRuntime = null;
-    runtime = null;
+    replEvaluator = null;
+    replVMPool = new REPLVirtualMachinePool();
+    replQueue = new REPLEvaluationQueue("REPL Evaluator") {
+      @Override
+      protected void evaluate(String code, boolean refresh) {
+        // TODO: Check how this is to be called, and where
+        prepareInitialREPLRun(code);
+        try {
+          handleREPLLaunch(code, refresh);
+        } catch (SketchException e) {
+          replConsole.getCommandPromptPane().handleBuildError(e, code);
+        } catch (Exception e) {
+          replConsole.getCommandPromptPane().handleException(e);
+//          No longer needed, since window doesn't close
+//          replConsole.getCommandPromptPane().runTempSketch(false, false);
+        }
+      }
+    };
 
     try {
       untitledFolderLocation = Util.createTempFolder("untitled", "repl", null);
@@ -118,6 +146,15 @@ public class REPLEditor extends JavaEditor {
       
       replSrcFolder = replTempSketch.makeTempFolder();
       replBinFolder = replTempSketch.makeTempFolder();
+      HotSwapStage replHotSwapStage = 
+          new HotSwapStage(replTempSketch.makeTempFolder(), replBinFolder);
+
+      File cacheFolder = new File(untitledFolderLocation, "build-cache");
+      replEvaluator = 
+          new REPLEvaluator(replTempSketch, this, replSrcFolder, 
+                            replHotSwapStage,
+                            replVMPool, new CompiledSketchCache(cacheFolder),
+                            getCommandPromptPane().getLatencyStats());
       
       /*
        * This is needed to add back the document listeners and make the editor
@@ -180,27 +217,23 @@ public class REPLEditor extends JavaEditor {
   }
 
   /**
-   * Handles the running of the REPL Console's "dummy" sketch
+   * Handles the running of the REPL Console's "dummy" sketch. The code is
+   * built and run on the evaluation thread, after any evaluation already
+   * under way, and in place of any other code still waiting to be run.
    * @param code The code to be run
    * @param refresh Whether the updated code can simply be hot swapped in (if
    * false), or whether the sketch window needs to be closed and re-opened
    * (if true)
    */
   public void handleREPLRun(String code, boolean refresh) {
-    new Thread(new Runnable() {
-      public void run() {
-        // TODO: Check how this is to be called, and where
-        prepareInitialREPLRun(code);
-        try {
-          replRuntime = handleREPLLaunch(replTempSketch, 
-                                         REPLEditor.this, refresh);
-        } catch (Exception e) {
-          replConsole.getCommandPromptPane().handleException(e);
-//          No longer needed, since window doesn't close
-//          replConsole.getCommandPromptPane().runTempSketch(false, false);
-        }
-      }
-    }).start();
+    replQueue.submit(code, refresh);
+  }
+
+  /**
+   * @return The queue the REPL Console's sketch is evaluated on
+   */
+  public REPLEvaluationQueue getEvaluationQueue() {
+    return replQueue;
   }
 
   /**
@@ -212,33 +245,18 @@ public class REPLEditor extends JavaEditor {
     return replConsole.getCommandPromptPane();
   }
 
-  /** Handles the standard Java "Run" or "Present" */
-  public REPLRunner handleREPLLaunch(Sketch sketch, RunnerListener listener,
-                             final boolean refresh) throws SketchException {
-    JavaBuild build = new JavaBuild(sketch);
-    String appletClassName = build.build(replSrcFolder, replBinFolder, false);
-    if (appletClassName != null) {
-      if (runtime == null || refresh || runtime.isFailedLoad()) {
-//        System.out.println("VM status at start: " + (runtime.vm() == null));
-        handleREPLStop();
-        runtime = new REPLRunner(build, listener);
-      }
-      new Thread(new Runnable() {
-        public void run() {
-          runtime.launchREPL(refresh); // this blocks until finished
-        }
-      }).start();
-   /*   else {
-        new Thread(new Runnable() {
-          public void run() {
-            runtime.recompileREPL(); // this blocks until finished
-  //          replConsole.requestFocus();
-          }
-        }).start();
-      }*/
-      return runtime;
-    }
-    return null;
+  /**
+   * Builds the REPL Console's sketch, and either hot swaps it into the
+   * sketch window that is already open, or launches a new one. Should only
+   * be called on the evaluation thread (see {@link #handleREPLRun}).
+   * @param code The code of the REPL Console's sketch
+   * @param refresh Whether the sketch window has to be closed and re-opened
+   * @return The runner for the REPL Console's sketch, or null if the build
+   * failed
+   */
+  public REPLRunner handleREPLLaunch(String code, final boolean refresh) 
+      throws SketchException {
+    return replEvaluator.evaluate(code, refresh);
   }
 
   /**
@@ -246,15 +264,19 @@ public class REPLEditor extends JavaEditor {
    * session or performs standard stop action if not currently debugging.
    */
   public void handleREPLStop() {
-
-    try {
-      if (replRuntime != null) {
-        replRuntime.close(); // kills the window
-        replRuntime = null;
+    // Nothing still waiting to be run is of any use now
+    replQueue.cancelPending();
+    replQueue.execute(new Runnable() {
+      public void run() {
+        try {
+          if (replEvaluator != null) {
+            replEvaluator.stop(); // kills the window
+          }
+        } catch (Exception e) {
+          statusError(e);
+        }
       }
-    } catch (Exception e) {
-      statusError(e);
-    }
+    });
   }
   
   /**
@@ -282,20 +304,31 @@ public class REPLEditor extends JavaEditor {
   /**
    * Used to, in addition to the function that the handleSave() method normally
    * performs, recompile the sketch code, so that the hot swapper kicks in and
-   * the contents of the sketch window get updated accordingly.
+   * the contents of the sketch window get updated accordingly. If the
+   * structure of the sketch has changed so that it can't be hot swapped in,
+   * the sketch is simply run again instead.
    */
   @Override
   public boolean handleSave(boolean immediately) {
     boolean res = super.handleSave(immediately);
     
-    if (replMode.srcFolder != null && replMode.binFolder != null) {
+    HotSwapStage stage = replMode.hotSwapStage;
+    if (replMode.srcFolder != null && stage != null) {
       customPrepareRun();
-//      handleRun();
       JavaBuild build = new JavaBuild(sketch);
       try {
-        build.build(replMode.srcFolder, replMode.binFolder, true);
+        if (build.build(replMode.srcFolder, stage.getStagingFolder(), 
+                        true) != null) {
+          if (replMode.isRunning && stage.findChangedClass() != null) {
+            handleRun();
+          } else {
+            stage.publish(false);
+          }
+        }
       } catch (SketchException e) {
         e.printStackTrace();
+      } catch (IOException e) {
+        e.printStackTrace();
       }
     }
     
@@ -312,6 +345,25 @@ public class REPLEditor extends JavaEditor {
     handleREPLStop();
   }
 
+  /**
+   * Shuts down the warm VMs waiting for the REPL Console's sketch once this
+   * Editor is closed. This isn't done in internalCloseRunner(), which is
+   * also called each time the PDE's sketch is stopped or run, and would
+   * throw the warm VMs away just when the next launch could use them.
+   */
+  @Override
+  public void dispose() {
+    handleREPLStop();
+    // After the stop, on the same thread, so that nothing is launched from
+    // the pool in between
+    replQueue.execute(new Runnable() {
+      public void run() {
+        replVMPool.shutdown();
+      }
+    });
+    super.dispose();
+  }
+
   /**
    * Sets this Editor's code
    */
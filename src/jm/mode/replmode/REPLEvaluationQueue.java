@@ -0,0 +1,188 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the evaluations of the REPL Console's sketch one at a time, on a
+ * single thread of their own. Evaluations all build into the same source
+ * and bin folders and share the same sketch VM, so two of them must never
+ * run at the same time.
+ * <p>
+ * If several evaluations are asked for while one is already running (when
+ * typing or pasting quickly, say), only the latest code gets built once the
+ * running one is done: the ones in between are of no interest to anyone,
+ * since the sketch window would only show them for a moment. If any of the
+ * requests folded together needed the sketch window to be refreshed, the
+ * one evaluation that does get run refreshes it.
+ * <p>
+ * The thread goes away after a while if there's nothing for it to do, and
+ * is started up again when there is.
+ *
+ * @author Joel Moniz
+ */
+public abstract class REPLEvaluationQueue {
+
+  /**
+   * How long (in seconds) the evaluation thread hangs about with nothing to
+   * do before going away
+   */
+  static final int KEEP_ALIVE_TIME = 60;
+
+  /**
+   * The single thread evaluations are run on
+   */
+  ThreadPoolExecutor executor;
+
+  /**
+   * The latest code waiting to be evaluated
+   */
+  String pendingCode;
+
+  /**
+   * Whether any of the requests waiting to be evaluated needs the sketch
+   * window to be refreshed
+   */
+  boolean pendingRefresh;
+
+  /**
+   * Whether there is an evaluation waiting to be run
+   */
+  boolean hasPending;
+
+  /**
+   * Bumped each time what is waiting is thrown away, so that an evaluation
+   * already handed to the executor before then knows to do nothing
+   */
+  int generation;
+
+  /**
+   * Number of requests that have come in since the last evaluation started,
+   * all of which will be taken care of by a single evaluation
+   */
+  int queueDepth;
+
+  /**
+   * @param threadName Name of the thread evaluations are run on
+   */
+  public REPLEvaluationQueue(final String threadName) {
+    executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, threadName);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    pendingCode = null;
+    pendingRefresh = false;
+    hasPending = false;
+    generation = 0;
+    queueDepth = 0;
+  }
+
+  /**
+   * Asks for <code>code</code> to be evaluated once whatever is currently
+   * being evaluated is done, in place of anything else that is waiting.
+   * @param code The code of the REPL Console's sketch
+   * @param refresh Whether the sketch window has to be closed and re-opened
+   */
+  public synchronized void submit(String code, boolean refresh) {
+    pendingCode = code;
+    pendingRefresh |= refresh;
+    queueDepth++;
+    if (!hasPending) {
+      hasPending = true;
+      final int submitted = generation;
+      executor.execute(new Runnable() {
+        public void run() {
+          runPending(submitted);
+        }
+      });
+    }
+  }
+
+  /**
+   * Runs <code>task</code> on the evaluation thread, after whatever has
+   * already been queued up. Used for anything else that touches the sketch
+   * VM or the build folders, such as stopping the sketch.
+   */
+  public void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  /**
+   * Throws away the evaluation waiting to be run, if any. The one currently
+   * running, if any, is left to finish. Anything submitted after this is
+   * run after whatever has been queued up with {@link #execute} in the
+   * meantime.
+   */
+  public synchronized void cancelPending() {
+    generation++;
+    pendingCode = null;
+    pendingRefresh = false;
+    hasPending = false;
+    queueDepth = 0;
+  }
+
+  /**
+   * @return The number of requests waiting to be evaluated (all of which
+   * will be folded into a single evaluation)
+   */
+  public synchronized int getQueueDepth() {
+    return queueDepth;
+  }
+
+  private void runPending(int submitted) {
+    String code;
+    boolean refresh;
+    synchronized (this) {
+      if (!hasPending || submitted != generation) {
+        // Cancelled, and anything submitted since has been queued up again
+        return;
+      }
+      code = pendingCode;
+      refresh = pendingRefresh;
+      pendingCode = null;
+      pendingRefresh = false;
+      hasPending = false;
+      queueDepth = 0;
+    }
+    evaluate(code, refresh);
+  }
+
+  /**
+   * Evaluates the REPL Console's sketch. Always called on the evaluation
+   * thread, one at a time.
+   * @param code The code of the sketch
+   * @param refresh Whether the sketch window has to be closed and re-opened
+   */
+  protected abstract void evaluate(String code, boolean refresh);
+}
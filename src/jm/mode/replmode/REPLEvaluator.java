@@ -0,0 +1,298 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.io.File;
+import java.io.IOException;
+
+import processing.app.Preferences;
+import processing.app.RunnerListener;
+import processing.app.Sketch;
+import processing.app.SketchException;
+import processing.mode.java.JavaBuild;
+
+/**
+ * The evaluation engine behind the REPL Console. Takes the code of the REPL
+ * Console's sketch each time the user enters a statement, and gets it
+ * running with as little work as possible:
+ * <ul>
+ * <li>If the code hasn't changed since the last successful build (such as
+ * after a <code>redo</code> with nothing to redo), nothing is compiled.</li>
+ * <li>If the code has been built before, the class files are taken from the
+ * {@link CompiledSketchCache} instead of being compiled again.</li>
+ * <li>If a sketch window is already open and doesn't need to be refreshed,
+ * the freshly compiled class is simply hot swapped into the running sketch
+ * VM, which keeps its state. No new VM is launched, and no thread is
+ * spun up just to find that out. This goes for an <code>undo</code>, a
+ * <code>redo</code> or a <code>resize</code> that keeps the same renderer
+ * too, since the sketch's code puts the canvas back (and resizes it) on its
+ * own (see {@link CommandList#CHECKPOINT_CODE}).</li>
+ * <li>The sketch is compiled to a staging folder, and only handed over to
+ * the hot swapper once the shapes of its classes are known to be the same
+ * as the ones already loaded (see {@link HotSwapStage}). If they aren't, a
+ * new VM is launched straight away, rather than after a failed attempt at
+ * hot swapping.</li>
+ * <li>Only if there is no sketch window, or if it has to be closed and
+ * re-opened (for example, after an <code>init</code> or a change of
+ * renderer), is a new VM launched.</li>
+ * </ul>
+ * <p>
+ * What this doesn't do is make a statement any cheaper to build: each new
+ * statement still has the whole sketch put together, preprocessed and
+ * compiled again by a {@link JavaBuild}, with all the statements entered
+ * since the last <code>init</code> in it. The build cache only helps with
+ * code that has been built before (such as after an <code>undo</code>). So
+ * the time taken to evaluate a statement still grows with the length of
+ * the session. <code>SketchBuildBenchmark</code> (in the
+ * <code>bench</code> target) measures how: compiling the sketch's
+ * <code>draw()</code> alone took about 53 ms with 10 or 100 statements, and
+ * 88 ms with 1000.
+ * <p>
+ * Evaluations share the same build folders and sketch VM, so they are run
+ * one at a time on the {@link REPLEvaluationQueue}.
+ *
+ * @author Joel Moniz
+ */
+public class REPLEvaluator {
+
+  /**
+   * The REPL Console's "dummy" sketch
+   */
+  Sketch sketch;
+
+  /**
+   * Whoever wants to know about the sketch VM's errors and status
+   */
+  RunnerListener listener;
+
+  /**
+   * The folder containing the intermediate .java files
+   */
+  File srcFolder;
+
+  /**
+   * The folder the .class files are compiled to, and the folder the hot
+   * swapper keeps an eye on, which they are copied to once they are known
+   * to be fit to be hot swapped in
+   */
+  HotSwapStage hotSwapStage;
+
+  /**
+   * Pool of warm VMs that new sketch windows are launched from
+   */
+  REPLVirtualMachinePool vmPool;
+
+  /**
+   * Compiled output of code that has been built before
+   */
+  CompiledSketchCache buildCache;
+
+  /**
+   * Where the time taken by each stage of an evaluation is recorded
+   */
+  REPLLatencyStats latencyStats;
+
+  /**
+   * The runner associated with the sketch VM currently running, if any
+   */
+  volatile REPLRunner runtime;
+
+  /**
+   * The code that was last built successfully
+   */
+  String lastBuiltCode;
+
+  /**
+   * Time taken (in milliseconds) by the last call to
+   * {@link #evaluate(String, boolean)}
+   */
+  long lastEvaluationTime;
+
+  public REPLEvaluator(Sketch sketch, RunnerListener listener,
+                       File srcFolder, HotSwapStage hotSwapStage,
+                       REPLVirtualMachinePool vmPool,
+                       CompiledSketchCache buildCache,
+                       REPLLatencyStats latencyStats) {
+    this.sketch = sketch;
+    this.listener = listener;
+    this.srcFolder = srcFolder;
+    this.hotSwapStage = hotSwapStage;
+    this.vmPool = vmPool;
+    this.buildCache = buildCache;
+    this.latencyStats = latencyStats;
+    runtime = null;
+    lastBuiltCode = null;
+    lastEvaluationTime = 0;
+  }
+
+  /**
+   * Builds the REPL Console's sketch (whose code is assumed to have already
+   * been set to <code>code</code>) and gets it running, either by hot
+   * swapping it into the running sketch VM, or by launching a new one.
+   * @param code The code of the sketch
+   * @param refresh Whether the sketch window has to be closed and
+   * re-opened (if true), or if the updated code can simply be hot swapped
+   * in (if false)
+   * @return The runner responsible for the sketch VM, or null if the build
+   * failed
+   * @throws SketchException If the code doesn't compile
+   */
+  public REPLRunner evaluate(String code, boolean refresh)
+      throws SketchException {
+    long start = System.currentTimeMillis();
+    try {
+      if (!refresh && isRunning() && code != null
+          && code.equals(lastBuiltCode)) {
+        /*
+         * Nothing new to compile, and the sketch already shows this code
+         */
+        return runtime;
+      }
+
+      long buildStart = System.nanoTime();
+      File stagingFolder = hotSwapStage.getStagingFolder();
+      JavaBuild build = buildCache.restore(code, stagingFolder);
+      if (build == null) {
+        build = new JavaBuild(sketch);
+        String appletClassName = build.build(srcFolder, stagingFolder, false);
+        latencyStats.recordSince(REPLLatencyStats.BUILD, buildStart);
+        if (appletClassName == null) {
+          return null;
+        }
+        buildCache.store(code, stagingFolder, build);
+        reportCache(false);
+      } else {
+        /*
+         * The preprocessor and compiler needn't be bothered this time round
+         */
+        latencyStats.recordSince(REPLLatencyStats.BUILD, buildStart);
+        reportCache(true);
+      }
+      lastBuiltCode = code;
+
+      if (!refresh && isRunning() && !runtime.isFailedLoad()) {
+        if (hotSwapStage.findChangedClass() != null) {
+          listener.statusNotice("The structure of the sketch has changed, "
+              + "so the sketch window has been restarted.");
+          refresh = true;
+        }
+      }
+
+      if (runtime == null || refresh || runtime.isFailedLoad()) {
+        stop();
+        publish(true);
+        runtime = new REPLRunner(build, listener, vmPool);
+        runtime.setLatencyStats(latencyStats);
+        runtime.setHotSwapStage(hotSwapStage);
+      } else if (runtime.isREPLWindowVisible) {
+        /*
+         * The hot swapper picks the new class files up on its own, so the
+         * running sketch VM is left well alone
+         */
+        publish(false);
+        runtime.armFirstDraw(latencyStats.getEnterTime(), true,
+                             CommandList.getCodeVersion(code));
+        return runtime;
+      } else {
+        publish(false);
+      }
+      runtime.armFirstDraw(latencyStats.getEnterTime(), false,
+                           CommandList.getCodeVersion(code));
+
+      final REPLRunner launched = runtime;
+      final boolean relaunch = refresh;
+      // The sketch VM is looked after on a thread of its own, since this
+      // blocks until the sketch window is closed
+      new Thread(new Runnable() {
+        public void run() {
+          launched.launchREPL(relaunch); // this blocks until finished
+        }
+      }, "REPL Sketch VM").start();
+      return runtime;
+    } finally {
+      lastEvaluationTime = System.currentTimeMillis() - start;
+    }
+  }
+
+  /**
+   * Copies the class files just compiled over to the folder the sketch VM
+   * loads its classes from.
+   * @param isFresh True if a new sketch VM is about to be launched
+   * @throws SketchException If the class files couldn't be copied
+   */
+  protected void publish(boolean isFresh) throws SketchException {
+    try {
+      hotSwapStage.publish(isFresh);
+    } catch (IOException e) {
+      lastBuiltCode = null;
+      throw new SketchException("Could not copy the compiled sketch: "
+          + e.getMessage());
+    }
+  }
+
+  /**
+   * Prints out how the build cache is faring, if the user has asked for
+   * such things.
+   */
+  protected void reportCache(boolean wasHit) {
+    if (Preferences.getBoolean(REPLRunner.METRICS_LOG_PREF)) {
+      System.out.println("REPL Mode: build cache " + (wasHit ? "hit" : "miss")
+          + " (" + buildCache.getHits() + " hits, " + buildCache.getMisses()
+          + " misses, " + buildCache.size() + " cached)");
+    }
+  }
+
+  /**
+   * @return The cache of previously compiled code
+   */
+  public CompiledSketchCache getBuildCache() {
+    return buildCache;
+  }
+
+  /**
+   * @return True if a sketch window for the REPL Console is currently open
+   */
+  public boolean isRunning() {
+    return runtime != null && runtime.isREPLWindowVisible;
+  }
+
+  /**
+   * @return Time taken (in milliseconds) by the last evaluation
+   */
+  public long getLastEvaluationTime() {
+    return lastEvaluationTime;
+  }
+
+  /**
+   * Closes the sketch window (and VM) associated with the REPL Console, if
+   * one is open.
+   */
+  public void stop() {
+    if (runtime != null) {
+      runtime.close(); // kills the window
+      runtime = null;
+    }
+    lastBuiltCode = null;
+  }
+}
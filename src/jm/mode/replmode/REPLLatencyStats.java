@@ -0,0 +1,219 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of how long each stage between the user hitting Enter in the
+ * REPL Console and the result showing up in the sketch window takes. The
+ * most recent {@link #CAPACITY} timings of each stage are kept in a ring
+ * buffer of <code>long</code>s, so that recording a timing costs next to
+ * nothing and allocates nothing; percentiles are only worked out when the
+ * user asks for them with the <code>stats</code> command word.
+ * <p>
+ * The stages are:
+ * <ul>
+ * <li><code>parse</code>: working out what sort of line the user entered
+ * (for every line, including command words, imports and the lines of a
+ * block)</li>
+ * <li><code>command list</code>: updating the {@link CommandList}</li>
+ * <li><code>source</code>: putting together the sketch's code</li>
+ * <li><code>build</code>: preprocessing and compiling the sketch (or taking
+ * it from the build cache)</li>
+ * <li><code>launch</code>: getting a new sketch VM up and running, including
+ * attaching to it</li>
+ * <li><code>hot swap</code>: from the class files being handed over to the
+ * sketch VM that is already running, to the first frame it draws with the
+ * new code (which takes in however long the hot swapper takes to notice
+ * them)</li>
+ * <li><code>attach</code>: waiting for the debugger to be attached to a new
+ * sketch VM</li>
+ * <li><code>first draw</code>: from the Enter key to the first frame drawn
+ * with the code of the change, end to end</li>
+ * </ul>
+ *
+ * @author Joel Moniz
+ */
+public class REPLLatencyStats {
+
+  public static final int PARSE = 0;
+
+  public static final int COMMAND_LIST = 1;
+
+  public static final int SOURCE = 2;
+
+  public static final int BUILD = 3;
+
+  public static final int LAUNCH = 4;
+
+  public static final int HOT_SWAP = 5;
+
+  public static final int ATTACH = 6;
+
+  public static final int FIRST_DRAW = 7;
+
+  static final String[] STAGE_NAMES = {
+    "parse", "command list", "source", "build", "launch", "hot swap",
+    "attach", "first draw"};
+
+  /**
+   * Number of timings kept for each stage
+   */
+  public static final int CAPACITY = 256;
+
+  /**
+   * <code>timings[stage]</code> holds the last {@link #CAPACITY} timings (in
+   * nanoseconds) of <code>stage</code>
+   */
+  final long[][] timings;
+
+  /**
+   * <code>counts[stage]</code> is the number of timings ever recorded for
+   * <code>stage</code>. The next timing goes into
+   * <code>counts[stage] % CAPACITY</code>.
+   */
+  final long[] counts;
+
+  /**
+   * Time (from {@link System#nanoTime()}) the user last hit Enter
+   */
+  volatile long enterTime;
+
+  public REPLLatencyStats() {
+    timings = new long[STAGE_NAMES.length][CAPACITY];
+    counts = new long[STAGE_NAMES.length];
+    enterTime = 0;
+  }
+
+  /**
+   * Marks the user hitting Enter, which is where the <code>first draw</code>
+   * stage is measured from.
+   * @return The current time, from {@link System#nanoTime()}
+   */
+  public long markEnter() {
+    enterTime = System.nanoTime();
+    return enterTime;
+  }
+
+  /**
+   * @return The time the user last hit Enter, from {@link System#nanoTime()}
+   */
+  public long getEnterTime() {
+    return enterTime;
+  }
+
+  /**
+   * Records a stage as having lasted from <code>start</code> till now.
+   * @param stage One of the stage constants
+   * @param start The time the stage started, from {@link System#nanoTime()}
+   */
+  public void recordSince(int stage, long start) {
+    record(stage, System.nanoTime() - start);
+  }
+
+  /**
+   * Records a timing for a stage.
+   * @param stage One of the stage constants
+   * @param nanos How long the stage took, in nanoseconds
+   */
+  public synchronized void record(int stage, long nanos) {
+    timings[stage][(int) (counts[stage] % CAPACITY)] = nanos;
+    counts[stage]++;
+  }
+
+  /**
+   * @return The number of timings recorded for <code>stage</code> that are
+   * still in the buffer
+   */
+  public synchronized int getSampleCount(int stage) {
+    return (int) Math.min(counts[stage], CAPACITY);
+  }
+
+  /**
+   * @param stage One of the stage constants
+   * @param percentile The percentile, between 0 and 100
+   * @return The percentile (in nanoseconds) of the timings of
+   * <code>stage</code> still in the buffer, or -1 if there are none
+   */
+  public long getPercentile(int stage, double percentile) {
+    long[] sorted = getSortedTimings(stage);
+    return percentile(sorted, percentile);
+  }
+
+  /**
+   * @return A table of the 50th, 95th and 99th percentiles of each stage,
+   * in milliseconds, for the user to peruse
+   */
+  public String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("%-13s%8s%10s%10s%10s%n",
+                                 "stage", "count", "p50", "p95", "p99"));
+    for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+      long[] sorted = getSortedTimings(stage);
+      if (sorted.length == 0) {
+        summary.append(String.format("%-13s%8d%10s%10s%10s%n",
+                                     STAGE_NAMES[stage], 0, "-", "-", "-"));
+      } else {
+        summary.append(String.format("%-13s%8d%10.1f%10.1f%10.1f%n",
+                                     STAGE_NAMES[stage], sorted.length,
+                                     toMillis(percentile(sorted, 50)),
+                                     toMillis(percentile(sorted, 95)),
+                                     toMillis(percentile(sorted, 99))));
+      }
+    }
+    summary.append("(times in ms, over the last " + CAPACITY
+        + " runs of each stage)");
+    return summary.toString();
+  }
+
+  /**
+   * Throws away all the timings recorded so far.
+   */
+  public synchronized void clear() {
+    Arrays.fill(counts, 0);
+  }
+
+  private synchronized long[] getSortedTimings(int stage) {
+    long[] sorted = 
+        Arrays.copyOf(timings[stage], (int) Math.min(counts[stage], CAPACITY));
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Nearest-rank percentile of a sorted array
+   */
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return -1;
+    }
+    int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+    return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1000000.0;
+  }
+}
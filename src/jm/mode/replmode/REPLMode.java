@@ -55,6 +55,12 @@ public class REPLMode extends JavaMode {
    * .class form
    */
   File binFolder;
+
+  /**
+   * Where the sketch is compiled to when it is saved while running, so that
+   * it can be checked before the hot swapper gets its hands on it
+   */
+  HotSwapStage hotSwapStage;
   
   /**
    * Folder where REPL Mode's reference is stored
@@ -62,10 +68,16 @@ public class REPLMode extends JavaMode {
   protected File replReference;
 
   /**
-   * Describes whether or not the sketch is running.
-   * @deprecated Not really used anywhere
+   * Index of the packages in the installed libraries, used to check the
+   * imports entered in the REPL Console
+   */
+  LibraryIndex libraryIndex;
+
+  /**
+   * Describes whether or not the sketch is running. Used to tell whether a
+   * saved sketch has to be hot swapped in.
    */
-  boolean isRunning;
+  volatile boolean isRunning;
   
   /**
    * Describes whether an REPLEditor has already been shown. Used, for example,
@@ -89,8 +101,20 @@ public class REPLMode extends JavaMode {
     
     srcFolder = null;
     binFolder = null;        
+    hotSwapStage = null;
     isRunning = false;
     firstEditorShown = false;
+
+    libraryIndex = new LibraryIndex(librariesFolder, 
+                                    Base.getSketchbookLibrariesFolder());
+    libraryIndex.start();
+  }
+
+  /**
+   * @return Index of the packages in the installed libraries
+   */
+  public LibraryIndex getLibraryIndex() {
+    return libraryIndex;
   }
 
   /**
@@ -185,6 +209,10 @@ public class REPLMode extends JavaMode {
     if (binFolder == null) {
       binFolder = this.base.getActiveEditor().getSketch().makeTempFolder();
     }
+    if (hotSwapStage == null) {
+      hotSwapStage = new HotSwapStage(
+          this.base.getActiveEditor().getSketch().makeTempFolder(), binFolder);
+    }
     
     JavaBuild build = new JavaBuild(sketch);
     String appletClassName = build.build(srcFolder, binFolder, true);
@@ -200,7 +228,7 @@ public class REPLMode extends JavaMode {
           }
           isRunning = false;
         }
-      }).start();
+      }, "REPL Mode Sketch Runner").start();
       return runtime;
     }
     return null;
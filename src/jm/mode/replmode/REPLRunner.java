@@ -28,12 +28,13 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
 
 import processing.app.Platform;
+import processing.app.Preferences;
 import processing.app.RunnerListener;
 import processing.app.SketchException;
-import processing.app.exec.StreamRedirectThread;
 import processing.core.PApplet;
 import processing.data.StringList;
 import processing.mode.java.JavaBuild;
@@ -41,22 +42,26 @@ import processing.mode.java.runner.MessageSiphon;
 import processing.mode.java.runner.Runner;
 
 import com.sun.jdi.Field;
+import com.sun.jdi.IntegerValue;
 import com.sun.jdi.ObjectReference;
 import com.sun.jdi.ReferenceType;
 import com.sun.jdi.Value;
-import com.sun.jdi.connect.AttachingConnector;
+import com.sun.jdi.VirtualMachine;
 import com.sun.jdi.connect.Connector;
 import com.sun.jdi.connect.Connector.Argument;
 import com.sun.jdi.connect.IllegalConnectorArgumentsException;
+import com.sun.jdi.connect.ListeningConnector;
 import com.sun.jdi.event.Event;
 import com.sun.jdi.event.EventQueue;
 import com.sun.jdi.event.EventSet;
 import com.sun.jdi.event.ExceptionEvent;
+import com.sun.jdi.event.MethodEntryEvent;
 import com.sun.jdi.event.VMDisconnectEvent;
 import com.sun.jdi.event.VMStartEvent;
 import com.sun.jdi.request.EventRequest;
 import com.sun.jdi.request.EventRequestManager;
 import com.sun.jdi.request.ExceptionRequest;
+import com.sun.jdi.request.MethodEntryRequest;
 
 /**
  * Class overriding processing's Runner class, primarily to permit 
@@ -66,14 +71,146 @@ import com.sun.jdi.request.ExceptionRequest;
  * ability to use a debugger.
  */
 public class REPLRunner extends Runner {
-  boolean isREPLWindowVisible;
+  volatile boolean isREPLWindowVisible;
   boolean hasFailedLoad;
 
+  /**
+   * Pool of warm VMs to launch the sketch from. May be null, in which case
+   * each launch starts a VM from scratch. 
+   */
+  REPLVirtualMachinePool vmPool;
+
+  /**
+   * Time (in milliseconds) the last launch took to get a debugger attached
+   */
+  long attachTime;
+
+  /**
+   * Whether the last launch was served by a VM from the warm pool
+   */
+  boolean wasWarmLaunch;
+
+  /**
+   * Where the time taken to launch, attach to and draw in the sketch VM is
+   * recorded. May be null, in which case nothing is timed.
+   */
+  REPLLatencyStats latencyStats;
+
+  /**
+   * Request for an event on entering a method of the sketch, which is only
+   * ever enabled while waiting for the first frame drawn by the code of the
+   * latest change. Null until the sketch VM is up and running.
+   */
+  MethodEntryRequest drawRequest;
+
+  /**
+   * Time (from {@link System#nanoTime()}) that the latest change was handed
+   * over to the sketch VM, or 0 if no <code>draw()</code> is being waited on
+   */
+  long drawArmedAt;
+
+  /**
+   * Time the user hit Enter for the latest change
+   */
+  long drawEnterTime;
+
+  /**
+   * Whether the sketch VM is being closed on purpose, in which case however
+   * it exits isn't an error
+   */
+  volatile boolean isClosing;
+
+  /**
+   * Whether the latest change is being hot swapped in, rather than having a
+   * sketch VM launched for it
+   */
+  boolean drawIsHotSwap;
+
+  /**
+   * Version of the code of the latest change (see
+   * {@link CommandList#getCodeVersion(String)})
+   */
+  int drawVersion;
+
+  /**
+   * Where the sketch is compiled before it is handed over to the sketch VM.
+   * May be null, in which case the sketch VM loads its classes from
+   * wherever they were compiled to.
+   */
+  HotSwapStage hotSwapStage;
+
+  /**
+   * Preference which, if true, has the time taken to launch and attach to
+   * the sketch VM printed out on each launch
+   */
+  public static final String METRICS_LOG_PREF = "repl.metrics.log";
+
+  /**
+   * Preference which, if false, has the REPL Console's sketch VM run
+   * without a debugger attached. The sketch then runs at full speed, and
+   * reports its errors itself (see {@link CommandList#ERROR_REPORT_CODE}),
+   * but there are no warm VMs to launch it from, and the time taken to
+   * draw a change isn't recorded.
+   */
+  public static final String DEBUGGER_PREF = "repl.debugger";
+
+  /**
+   * Preference holding the classes (or packages, such as
+   * <code>processing.core.*</code>) that the debugger reports uncaught
+   * exceptions thrown from, separated by commas. Empty for all of them.
+   */
+  public static final String EXCEPTION_FILTER_PREF = 
+      "repl.debugger.exception_filter";
+
+  /**
+   * Preference holding the classes (or packages) that the debugger doesn't
+   * report uncaught exceptions thrown from, separated by commas
+   */
+  public static final String EXCEPTION_EXCLUDE_PREF = 
+      "repl.debugger.exception_exclude";
+
+  /**
+   * Start of the line the REPL Console's sketch prints to its error stream
+   * when it runs into an error it can't recover from
+   */
+  public static final String ERROR_MARKER = "__REPL_ERROR__";
+
+  /**
+   * How long (in milliseconds) to wait for a sketch VM to connect back
+   */
+  static final int ATTACH_TIMEOUT = 30000;
+
   public REPLRunner(JavaBuild build, RunnerListener listener)
       throws SketchException {
+    this(build, listener, null);
+  }
+
+  public REPLRunner(JavaBuild build, RunnerListener listener,
+                    REPLVirtualMachinePool vmPool) throws SketchException {
     super(build, listener);
     
     isREPLWindowVisible = false;
+    this.vmPool = vmPool;
+    attachTime = 0;
+    wasWarmLaunch = false;
+    latencyStats = null;
+    drawRequest = null;
+    drawArmedAt = 0;
+    hotSwapStage = null;
+    isClosing = false;
+  }
+
+  public void setLatencyStats(REPLLatencyStats latencyStats) {
+    this.latencyStats = latencyStats;
+  }
+
+  /**
+   * Has the sketch VM load its classes from the bin folder of
+   * <code>hotSwapStage</code>, rather than from the staging folder the
+   * sketch was compiled to.
+   */
+  public void setHotSwapStage(HotSwapStage hotSwapStage) {
+    this.hotSwapStage = hotSwapStage;
   }
 
   /**
@@ -83,7 +220,11 @@ public class REPLRunner extends Runner {
    */
   public void launchREPL(boolean refresh) {
     // I <3 short circuiting
+    long launchStart = System.nanoTime();
     if ((!isREPLWindowVisible || refresh) && launchREPLVirtualMachine()) {
+      if (latencyStats != null) {
+        latencyStats.recordSince(REPLLatencyStats.LAUNCH, launchStart);
+      }
       isREPLWindowVisible = true;
       generateREPLTrace();
       isREPLWindowVisible = false;
@@ -99,26 +240,30 @@ public class REPLRunner extends Runner {
    * status area.
    */
   protected void generateREPLTrace() {
-    // Calling this seems to set something internally to make the
-    // Eclipse JDI wake up. Without it, an ObjectCollectedException
-    // is thrown on excReq.enable(). No idea why this works,
-    // but at least exception handling has returned. (Suspect that it may
-    // block until all or at least some threads are available, meaning
-    // that the app has launched and we have legit objects to talk to).
-    vm.allThreads();
-    // The bug may not have been noticed because the test suite waits for
-    // a thread to be available, and queries it by calling allThreads().
-    // See org.eclipse.debug.jdi.tests.AbstractJDITest for the example.
+    if (vm == null) {
+      // No debugger, so errors come in on the sketch VM's error stream
+      generateUndebuggedTrace();
+      return;
+    }
 
+    // (There used to be a call to vm.allThreads() here, to wake up the
+    // Eclipse JDI. The JDK's JDI needs no waking up, and the call cost a
+    // round trip to the sketch VM on every launch.)
     EventRequestManager mgr = vm.eventRequestManager();
-    // get only the uncaught exceptions
-    ExceptionRequest excReq = mgr.createExceptionRequest(null, false, true);
-    // this version reports all exceptions, caught or uncaught
+    requestUncaughtExceptions(mgr, getPatterns(EXCEPTION_FILTER_PREF),
+                              getPatterns(EXCEPTION_EXCLUDE_PREF));
 
-    // suspend so we can step
-    excReq.setSuspendPolicy(EventRequest.SUSPEND_ALL);
-    
-    excReq.enable();
+    if (latencyStats != null) {
+      synchronized (this) {
+        // Only replRestore() is of interest, but a method name can't be
+        // filtered on. The thread is suspended so that its arguments can be
+        // read, but only while a change is waited on.
+        drawRequest = mgr.createMethodEntryRequest();
+        drawRequest.addClassFilter(build.getSketchClassName());
+        drawRequest.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+        drawRequest.setEnabled(drawArmedAt != 0);
+      }
+    }
 
     Thread eventThread = new Thread() {
       public void run() {
@@ -134,23 +279,15 @@ public class REPLRunner extends Runner {
                 vm.resume();
               } else if (event instanceof ExceptionEvent) {
                 exceptionEvent((ExceptionEvent) event);
-                
-                // TODO: This is neat, but a wee bit hacky, is it not?
-                if (editor != null && editor instanceof REPLEditor) {
-                  String errMsg = editor.getStatusMessage();
-                  editor.statusEmpty();
-                  CommandPromptPane cmd = 
-                      ((REPLEditor)editor).getCommandPromptPane();
-                  if (errMsg.contains("/size_.html")) {
-                    cmd.handleException("size() cannot be called from within" + 
-                        " the REPL Console. Please use init or resize instead.");
-                  }
-                  else {
-                    cmd.handleException(errMsg);
-                  }
-                close();
-                connected = false;
+                if (reportToREPLConsole()) {
+                  connected = false;
+                } else {
+                  // Only the thread that threw is suspended; let it go on
+                  eventSet.resume();
                 }
+              } else if (event instanceof MethodEntryEvent) {
+                methodEntryEvent((MethodEntryEvent) event);
+                eventSet.resume();
               } else if (event instanceof VMDisconnectEvent) {
                 connected = false;
               }
@@ -168,9 +305,11 @@ public class REPLRunner extends Runner {
     errThread =
       new MessageSiphon(process.getErrorStream(), this).getThread();
 
-    outThread = new StreamRedirectThread("JVM stdout Reader",
-                                         process.getInputStream(),
-                                         sketchOut);
+    // Batched and rate limited, so that a sketch printing on every frame
+    // can't flood the console
+    outThread = new SketchOutputForwarder("JVM stdout Reader",
+                                          process.getInputStream(),
+                                          sketchOut);
     errThread.start();
     outThread.start();
 
@@ -195,25 +334,368 @@ public class REPLRunner extends Runner {
     }
   }
 
+  /**
+   * The same as {@link #generateREPLTrace()}, but for a sketch VM run
+   * without a debugger attached. Forwards the sketch VM's output and error
+   * streams (where any errors are reported, see {@link #message(String)}),
+   * and waits for the sketch VM to finish.
+   */
+  protected void generateUndebuggedTrace() {
+    errThread =
+      new MessageSiphon(process.getErrorStream(), this).getThread();
+    outThread = new SketchOutputForwarder("JVM stdout Reader",
+                                          process.getInputStream(),
+                                          sketchOut);
+    errThread.start();
+    outThread.start();
+
+    try {
+      process.waitFor();
+      errThread.join(); // Make sure output is forwarded
+      outThread.join(); // before we exit
+    } catch (InterruptedException exc) {
+      // we don't interrupt
+    }
+  }
+
+  /**
+   * Asks the sketch VM to report the exceptions that aren't caught. Only the
+   * thread the exception is thrown on is suspended, which is all that is
+   * needed to find out where it was thrown from, and leaves the rest of the
+   * sketch VM (such as the sketch window's event thread) running.
+   * @param mgr The sketch VM's event request manager
+   * @param filters The classes (or packages) to report exceptions thrown
+   * from, or an empty array for all of them
+   * @param exclusions The classes (or packages) not to report exceptions
+   * thrown from
+   * @return The request, already enabled
+   */
+  static ExceptionRequest requestUncaughtExceptions(EventRequestManager mgr,
+                                                    String[] filters,
+                                                    String[] exclusions) {
+    // get only the uncaught exceptions
+    ExceptionRequest excReq = mgr.createExceptionRequest(null, false, true);
+    for (String filter : filters) {
+      excReq.addClassFilter(filter);
+    }
+    for (String exclusion : exclusions) {
+      excReq.addClassExclusionFilter(exclusion);
+    }
+    excReq.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+    excReq.enable();
+    return excReq;
+  }
+
+  /**
+   * @return The class (or package) patterns in the preference
+   * <code>pref</code>, which are separated by commas
+   */
+  static String[] getPatterns(String pref) {
+    String patterns = Preferences.get(pref);
+    if (patterns == null || patterns.trim().isEmpty()) {
+      return new String[0];
+    }
+    return patterns.trim().split("\\s*,\\s*");
+  }
+
+  /**
+   * @return True if the REPL Console's sketch VM is to be run with a
+   * debugger attached (see {@link #DEBUGGER_PREF})
+   */
+  public static boolean isDebuggerEnabled() {
+    return Preferences.get(DEBUGGER_PREF) == null
+        || Preferences.getBoolean(DEBUGGER_PREF);
+  }
+
+  /**
+   * Passes the error just shown in the status area on to the REPL Console
+   * (where the statement that caused it is undone), and closes the sketch
+   * window.
+   * @return True if there was a REPL Console to pass the error on to
+   */
+  protected boolean reportToREPLConsole() {
+    // TODO: This is neat, but a wee bit hacky, is it not?
+    if (!(editor instanceof REPLEditor)) {
+      return false;
+    }
+    String errMsg = editor.getStatusMessage();
+    editor.statusEmpty();
+    CommandPromptPane cmd = ((REPLEditor)editor).getCommandPromptPane();
+    if (errMsg.contains("/size_.html")) {
+      cmd.handleException("size() cannot be called from within" + 
+          " the REPL Console. Please use init or resize instead.");
+    }
+    else {
+      cmd.handleException(errMsg);
+    }
+    close();
+    return true;
+  }
+
+  /**
+   * Picks the errors reported by the REPL Console's sketch (see
+   * {@link CommandList#ERROR_REPORT_CODE}) out of its error stream, and
+   * reports them the same way the debugger would. Everything else
+   * (including the stack trace that follows the report) is handled as
+   * usual.
+   */
+  @Override
+  public void message(String s) {
+    if (!s.startsWith(ERROR_MARKER)) {
+      super.message(s);
+      return;
+    }
+    String[] report = 
+        s.substring(ERROR_MARKER.length()).trim().split("\t", 2);
+    String exceptionName = report[0];
+    String message = 
+        exceptionName.substring(exceptionName.lastIndexOf('.') + 1);
+    if (report.length > 1) {
+      message += ": " + report[1];
+    }
+
+    if (editor != null) {
+      editor.deactivateRun();
+    }
+    if (!handleCommonErrors(exceptionName, message, listener, sketchErr)) {
+      listener.statusError(message);
+    }
+    reportToREPLConsole();
+  }
+
+  /**
+   * Closes the sketch VM. Without a debugger attached, there's nothing to
+   * ask it to exit with, so the process is simply done away with.
+   */
+  @Override
+  public void close() {
+    isClosing = true;
+    boolean hasDebugger = (vm != null);
+    super.close();
+    if (!hasDebugger && process != null) {
+      process.destroy();
+    }
+  }
+
+  /**
+   * Starts waiting for the first frame the sketch VM draws with the code of
+   * a change, so that the time taken for the change to make it to the
+   * sketch window can be recorded.
+   * <p>
+   * The hot swapper reloads the classes whenever it notices that the class
+   * files have changed, and frames drawn in the meantime still run the old
+   * code. So the version the sketch's code hands to
+   * <code>replRestore()</code> on each frame is read, and frames with any
+   * other version are passed over.
+   * @param enterTime Time (from {@link System#nanoTime()}) the user hit
+   * Enter for the change, or 0 if that isn't known
+   * @param hotSwap Whether the change is being hot swapped in (if true), or
+   * whether a sketch VM is being launched for it (if false)
+   * @param version The version of the code of the change (see
+   * {@link CommandList#getCodeVersion(String)})
+   */
+  public synchronized void armFirstDraw(long enterTime, boolean hotSwap,
+                                        int version) {
+    if (latencyStats == null) {
+      return;
+    }
+    drawArmedAt = System.nanoTime();
+    drawEnterTime = enterTime;
+    drawIsHotSwap = hotSwap;
+    drawVersion = version;
+    if (drawRequest != null) {
+      try {
+        drawRequest.enable();
+      } catch (Exception e) {
+        // The sketch VM has gone away, so there's nothing to wait for
+        drawArmedAt = 0;
+      }
+    }
+  }
+
+  /**
+   * Records the first frame drawn with the code of a change, and stops
+   * waiting for any more. Called with the thread that entered the method
+   * suspended.
+   */
+  protected synchronized void methodEntryEvent(MethodEntryEvent event) {
+    if (drawArmedAt == 0 || !event.method().name().equals("replRestore")) {
+      return;
+    }
+    try {
+      List<Value> args = event.thread().frame(0).getArgumentValues();
+      Value version = args.get(args.size() - 1);
+      if (!(version instanceof IntegerValue)
+          || ((IntegerValue) version).value() != drawVersion) {
+        // Still the old code
+        return;
+      }
+    } catch (Exception e) {
+      // Can't tell which code it is; wait for the next frame
+      return;
+    }
+    if (drawIsHotSwap) {
+      latencyStats.recordSince(REPLLatencyStats.HOT_SWAP, drawArmedAt);
+    }
+    if (drawEnterTime != 0) {
+      latencyStats.recordSince(REPLLatencyStats.FIRST_DRAW, drawEnterTime);
+    }
+    drawArmedAt = 0;
+    drawRequest.disable();
+  }
+
   /**
    * Convenience method to launch the VM corresponding to the REPL Console's
    * sketch 
    * @return True if the VM was launched
    */
   public boolean launchREPLVirtualMachine() {
+    if (!isDebuggerEnabled()) {
+      return launchUndebuggedVirtualMachine();
+    }
     return launchVirtualMachine(false, null);
   }
 
+  /**
+   * Launches the REPL Console's sketch VM without a debugger attached (see
+   * {@link #DEBUGGER_PREF}). The pool of warm VMs can't be used, since its
+   * VMs are all waiting on a debugger to get started.
+   * @return True if the VM was launched
+   */
+  protected boolean launchUndebuggedVirtualMachine() {
+    long launchStart = System.nanoTime();
+    String[] commandArgs = getREPLCommandArgs(false, null);
+    process = PApplet.exec(getJavaCommand(null, commandArgs));
+    vm = null;
+    attachTime = (System.nanoTime() - launchStart) / 1000000;
+    wasWarmLaunch = false;
+    if (latencyStats != null) {
+      latencyStats.recordSince(REPLLatencyStats.ATTACH, launchStart);
+    }
+    reportAttachTime();
+    return process != null;
+  }
+
   /**
    * Pretty much the same as the launchVirtualMachine() of the base Runner 
-   * class, except that this adds in an extra VM argument for the hot swapper 
+   * class, except that this adds in an extra VM argument for the hot swapper,
+   * and that it takes a warm VM from the pool if there's one waiting
    */
   @Override
   public boolean launchVirtualMachine(boolean presenting, String[] args) {
-    int port = 8000 + (int) (Math.random() * 1000);
-    String portStr = String.valueOf(port);
+    String[] commandArgs = getREPLCommandArgs(presenting, args);
+
+    if (vmPool != null) {
+      REPLVirtualMachinePool.PooledVM pooled = vmPool.take(commandArgs);
+      if (pooled != null) {
+        process = pooled.process;
+        vm = pooled.vm;
+        // launchJava() isn't used, so its watch on the process is kept here
+        isClosing = false;
+        watchPooledProcess(process);
+        attachTime = 0;
+        wasWarmLaunch = true;
+        if (latencyStats != null) {
+          latencyStats.record(REPLLatencyStats.ATTACH, 0);
+        }
+        reportAttachTime();
+        vmPool.refill(this, commandArgs);
+        return true;
+      }
+    }
+
+    long launchStart = System.nanoTime();
+    DebuggerListener debugger = new DebuggerListener();
+    try {
+      launchJava(getJavaCommand(debugger.address, commandArgs));
+
+      /*
+       * This part seems to be used to get the vm, that is in turn used not
+       * only for the debugger, but to close the sketch frame as well...
+       */
+      vm = debugger.accept();
+    } finally {
+      debugger.close();
+    }
+    attachTime = (System.nanoTime() - launchStart) / 1000000;
+    wasWarmLaunch = false;
+    if (latencyStats != null) {
+      latencyStats.recordSince(REPLLatencyStats.ATTACH, launchStart);
+    }
+    reportAttachTime();
+
+    if (vm != null && vmPool != null) {
+      /*
+       * Get a VM warmed up for the next time round
+       */
+      vmPool.refill(this, commandArgs);
+    }
+    return vm != null;
+  }
+
+  /**
+   * Reports a sketch VM taken from the pool that exits with an error, the
+   * way <code>launchJava()</code> does for the sketch VMs it starts, since
+   * one that can't run the sketch would otherwise fail silently.
+   * @param pooledProcess The sketch VM's process
+   */
+  protected void watchPooledProcess(final Process pooledProcess) {
+    Thread watcher = new Thread(new Runnable() {
+      public void run() {
+        try {
+          int result = pooledProcess.waitFor();
+          if (result != 0 && !isClosing) {
+            System.err.println("The sketch VM exited with code " + result);
+            listener.statusError("Could not run the sketch.");
+          }
+        } catch (InterruptedException e) {
+          // we don't interrupt
+        }
+      }
+    }, "REPL Sketch VM Watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
 
+  /**
+   * Starts a sketch VM the same way {@link #launchVirtualMachine} would, and
+   * attaches to it, but leaves it suspended right at the start. Used to fill
+   * up the pool of warm VMs.
+   * @param commandArgs The command line, as returned by
+   * {@link #getREPLCommandArgs}
+   * @return The VM, or null if it couldn't be started
+   */
+  REPLVirtualMachinePool.PooledVM startSuspendedVirtualMachine(String[] 
+                                                               commandArgs) {
+    DebuggerListener debugger = new DebuggerListener();
+    try {
+      Process pooledProcess = 
+          PApplet.exec(getJavaCommand(debugger.address, commandArgs));
+      VirtualMachine pooledVM = debugger.accept();
+      if (pooledVM == null) {
+        pooledProcess.destroy();
+        return null;
+      }
+      return new REPLVirtualMachinePool.PooledVM(pooledProcess, pooledVM);
+    } finally {
+      debugger.close();
+    }
+  }
+
+  /**
+   * Puts together everything that goes on the command line used to launch
+   * the sketch VM, except for the path to java and the debugger argument
+   * (which differs from VM to VM, even for the same sketch).
+   */
+  protected String[] getREPLCommandArgs(boolean presenting, String[] args) {
     StringList vmParams = getMachineParams();
+    if (hotSwapStage != null) {
+      for (int i = 0; i < vmParams.size() - 1; i++) {
+        if (vmParams.get(i).equals("-cp")) {
+          vmParams.set(i + 1, hotSwapStage.toBinClassPath(vmParams.get(i + 1)));
+        }
+      }
+    }
     StringList sketchParams = getSketchParams(presenting, args);
 
     /**
@@ -236,47 +718,120 @@ public class REPLRunner extends Runner {
           + "now. Don't worry- REPL Mode will try to wake it up");
       hasFailedLoad = true;
     }
-    // Newer (Java 1.5+) version that uses JVMTI
-    String jdwpArg = "-agentlib:jdwp=transport=dt_socket,address=" 
-        + portStr + ",server=y,suspend=y";
-    // Everyone works the same under Java 7 (also on OS X)
+
     StringList commandArgs = new StringList();
-    commandArgs.append(Platform.getJavaPath());
-    commandArgs.append(jdwpArg);
     commandArgs.append(hotSwapArg);
     commandArgs.append(vmParams);
     commandArgs.append(sketchParams);
-    launchJava(commandArgs.array());
+    return commandArgs.array();
+  }
+
+  /**
+   * @return The full command used to start a sketch VM which connects back
+   * to a debugger listening at <code>address</code>, or which runs without
+   * a debugger if <code>address</code> is null
+   */
+  protected String[] getJavaCommand(String address, String[] commandArgs) {
+    // Everyone works the same under Java 7 (also on OS X)
+    StringList command = new StringList();
+    command.append(Platform.getJavaPath());
+    if (address != null) {
+      // Newer (Java 1.5+) version that uses JVMTI. The sketch VM connects to
+      // us (server=n) rather than the other way round, so there's no need
+      // to guess at a free port, or to keep knocking until the VM is ready.
+      command.append("-agentlib:jdwp=transport=dt_socket,address=" 
+          + address + ",server=n,suspend=y");
+    }
+    command.append(commandArgs);
+    return command.array();
+  }
 
-    /*
-     * This part seems to be used to get the vm, that is in turn used not only
-     * for the debugger, but to close the sketch frame as well...
+  /**
+   * Prints out how long the last launch took to get a debugger attached, if
+   * the user has asked for such things.
+   */
+  protected void reportAttachTime() {
+    if (Preferences.getBoolean(METRICS_LOG_PREF)) {
+      System.out.println("REPL Mode: sketch VM " 
+          + (wasWarmLaunch ? "taken from the warm pool" : "attached") 
+          + " in " + attachTime + " ms");
+    }
+  }
+
+  /**
+   * @return Time (in milliseconds) between starting the last launch and
+   * having the debugger attached to the sketch VM
+   */
+  public long getAttachTime() {
+    return attachTime;
+  }
+
+  /**
+   * @return True if the last launch was served by a VM from the warm pool
+   */
+  public boolean wasWarmLaunch() {
+    return wasWarmLaunch;
+  }
+
+  /**
+   * A debugger that listens on an ephemeral port for a sketch VM to connect
+   * to it. Each launch gets its own, so two editors launching at the same
+   * time can't end up fighting over the same port.
+   */
+  protected class DebuggerListener {
+    ListeningConnector connector;
+    Map<String, Argument> arguments;
+
+    /**
+     * The address to pass on to the sketch VM's <code>jdwp</code> agent
      */
-    AttachingConnector connector = (AttachingConnector)
-      findConnector("com.sun.jdi.SocketAttach");
+    String address;
+
+    DebuggerListener() {
+      connector = (ListeningConnector) findConnector("com.sun.jdi.SocketListen");
+      arguments = connector.defaultArguments();
 
-    Map<String, Argument> arguments = connector.defaultArguments();
+      // Port 0 lets the OS pick one that's free
+      arguments.get("port").setValue("0");
+      Connector.Argument localAddress = arguments.get("localAddress");
+      if (localAddress != null) {
+        localAddress.setValue("127.0.0.1");
+      }
+      Connector.Argument timeout = arguments.get("timeout");
+      if (timeout != null) {
+        timeout.setValue(String.valueOf(ATTACH_TIMEOUT));
+      }
 
-    Connector.Argument portArg = arguments.get("port");
-    portArg.setValue(portStr);
+      try {
+        address = connector.startListening(arguments);
+      } catch (IOException e) {
+        throw new Error("Could not listen for the sketch VM: " + e);
+      } catch (IllegalConnectorArgumentsException exc) {
+        throw new Error("Internal error: " + exc);
+      }
+    }
 
-    try {
-      while (true) {
-        try {
-          vm = connector.attach(arguments);
-          if (vm != null) {
-            return true;
-          }
-        } catch (IOException e) {
-          try {
-            Thread.sleep(100);
-          } catch (InterruptedException e1) {
-            e1.printStackTrace(sketchErr);
-          }
-        }
+    /**
+     * Blocks until the sketch VM connects.
+     * @return The VM, or null if it didn't show up in time
+     */
+    VirtualMachine accept() {
+      try {
+        return connector.accept(arguments);
+      } catch (IOException e) {
+        e.printStackTrace(sketchErr);
+        return null;
+      } catch (IllegalConnectorArgumentsException exc) {
+        throw new Error("Internal error: " + exc);
+      }
+    }
+
+    void close() {
+      try {
+        connector.stopListening(arguments);
+      } catch (Exception e) {
+        // nothing left to clean up
       }
-    } catch (IllegalConnectorArgumentsException exc) {
-      throw new Error("Internal error: " + exc);
     }
   }
 
@@ -322,6 +877,8 @@ public class REPLRunner extends Runner {
     }
     else {
       if (exceptionName.equals("java.lang.IllegalStateException")) {
+        // Changes in structure are normally caught before they get this far
+        // (see HotSwapStage), but just in case one slips through
         close();
         if (editor instanceof REPLEditor)
           ((REPLEditor)editor).handleRun();
@@ -0,0 +1,275 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import processing.app.Preferences;
+
+import com.sun.jdi.VirtualMachine;
+
+/**
+ * A pool of "warm" sketch VMs for the REPL Console. Each VM in the pool has
+ * already been started, has a debugger attached, and sits suspended right
+ * at the start, before the sketch class has even been loaded. Launching the
+ * REPL Console's sketch (after an <code>init</code>, an <code>undo</code>,
+ * etc.) can then simply take one of these instead of waiting for a brand new
+ * JVM to start up.
+ * <p>
+ * A pooled VM can only stand in for a launch with exactly the same command
+ * line, so the pool remembers the command line its VMs were started with,
+ * and throws them away if a launch asks for something different (such as
+ * when a library is imported and the class path changes).
+ * <p>
+ * The number of VMs kept waiting is set by the
+ * {@link #POOL_SIZE_PREF} preference. A value of 0 turns pooling off.
+ *
+ * @author Joel Moniz
+ */
+public class REPLVirtualMachinePool {
+
+  /**
+   * Preference used to store the number of warm VMs to keep around
+   */
+  public static final String POOL_SIZE_PREF = "repl.vm_pool.size";
+
+  /**
+   * Number of warm VMs kept around if the user hasn't said otherwise
+   */
+  public static final int DEFAULT_POOL_SIZE = 1;
+
+  /**
+   * A sketch VM that has been started and attached to, but not resumed
+   */
+  static class PooledVM {
+    final Process process;
+    final VirtualMachine vm;
+
+    PooledVM(Process process, VirtualMachine vm) {
+      this.process = process;
+      this.vm = vm;
+    }
+
+    boolean isAlive() {
+      return process.isAlive();
+    }
+
+    /**
+     * Kills off the VM. Closing the debugger connection alone isn't enough,
+     * since the VM would then resume and run the sketch.
+     */
+    void dispose() {
+      try {
+        vm.exit(0);
+      } catch (Exception e) {
+        // already gone
+      }
+      process.destroy();
+    }
+  }
+
+  /**
+   * The VMs waiting to be used
+   */
+  final ArrayDeque<PooledVM> idleVMs;
+
+  /**
+   * The command line (minus the debugger argument) that the VMs in the pool
+   * were started with
+   */
+  String[] poolArgs;
+
+  /**
+   * Number of VMs currently being started in the background
+   */
+  int pending;
+
+  /**
+   * Bumped each time the pool is emptied, so that VMs which finish starting
+   * up after that know they are no longer wanted
+   */
+  int generation;
+
+  /**
+   * Starts VMs for the pool in the background
+   */
+  ExecutorService launcher;
+
+  /**
+   * Makes sure no suspended VM outlives the PDE
+   */
+  Thread shutdownHook;
+
+  public REPLVirtualMachinePool() {
+    idleVMs = new ArrayDeque<>();
+    poolArgs = null;
+    pending = 0;
+    generation = 0;
+    launcher = null;
+    shutdownHook = null;
+  }
+
+  /**
+   * @return The number of warm VMs the user would like kept around
+   */
+  public static int getPoolSize() {
+    try {
+      return Math.max(0, Preferences.getInteger(POOL_SIZE_PREF));
+    } catch (NumberFormatException e) {
+      return DEFAULT_POOL_SIZE;
+    }
+  }
+
+  /**
+   * Takes a warm VM out of the pool.
+   * @param commandArgs The command line (minus the debugger argument) that
+   * the VM is needed for
+   * @return A VM started with <code>commandArgs</code>, or null if there is
+   * none waiting
+   */
+  public synchronized PooledVM take(String[] commandArgs) {
+    if (!Arrays.equals(commandArgs, poolArgs)) {
+      return null;
+    }
+    while (!idleVMs.isEmpty()) {
+      PooledVM pooled = idleVMs.poll();
+      if (pooled.isAlive()) {
+        return pooled;
+      }
+      pooled.dispose();
+    }
+    return null;
+  }
+
+  /**
+   * Tops the pool up in the background, so that it is ready for the next
+   * launch with <code>commandArgs</code>.
+   * @param runner The runner used to start and attach to the VMs
+   * @param commandArgs The command line (minus the debugger argument) to
+   * start the VMs with
+   */
+  public synchronized void refill(final REPLRunner runner,
+                                  final String[] commandArgs) {
+    int size = getPoolSize();
+    if (!Arrays.equals(commandArgs, poolArgs)) {
+      /*
+       * Whatever is in the pool was meant for a different launch
+       */
+      disposeIdle();
+      poolArgs = commandArgs;
+    }
+    while (idleVMs.size() > size) {
+      idleVMs.poll().dispose();
+    }
+    if (size == 0) {
+      return;
+    }
+    if (launcher == null) {
+      launcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "REPL VM Pool Launcher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    if (shutdownHook == null) {
+      shutdownHook = new Thread("REPL VM Pool Shutdown") {
+        public void run() {
+          synchronized (REPLVirtualMachinePool.this) {
+            disposeIdle();
+          }
+        }
+      };
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    final int launchGeneration = generation;
+    while (idleVMs.size() + pending < size) {
+      pending++;
+      launcher.submit(new Runnable() {
+        public void run() {
+          PooledVM pooled = null;
+          try {
+            pooled = runner.startSuspendedVirtualMachine(commandArgs);
+          } finally {
+            synchronized (REPLVirtualMachinePool.this) {
+              if (launchGeneration == generation) {
+                pending--;
+              }
+              if (pooled != null) {
+                if (launchGeneration == generation
+                    && Arrays.equals(commandArgs, poolArgs)) {
+                  idleVMs.add(pooled);
+                } else {
+                  pooled.dispose();
+                }
+              }
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * @return The number of warm VMs currently waiting to be used
+   */
+  public synchronized int getIdleCount() {
+    return idleVMs.size();
+  }
+
+  /**
+   * Kills off all the warm VMs and stops any that are being started. The
+   * pool fills up again the next time the REPL Console's sketch is launched.
+   */
+  public synchronized void shutdown() {
+    disposeIdle();
+    poolArgs = null;
+    if (launcher != null) {
+      launcher.shutdownNow();
+      launcher = null;
+    }
+    if (shutdownHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // already shutting down
+      }
+      shutdownHook = null;
+    }
+  }
+
+  private void disposeIdle() {
+    generation++;
+    pending = 0;
+    while (!idleVMs.isEmpty()) {
+      idleVMs.poll().dispose();
+    }
+  }
+}
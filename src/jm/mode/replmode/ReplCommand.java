@@ -0,0 +1,78 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+/**
+ * A command word that can be plugged into the REPL Console. Command words
+ * are found with a {@link java.util.ServiceLoader}: a jar dropped into the
+ * REPL Mode's <code>mode</code> folder only has to list its
+ * implementations in the file
+ * <code>META-INF/services/jm.mode.replmode.ReplCommand</code> for them to
+ * show up in the REPL Console (and in <code>help</code>). Implementations
+ * need a public no-argument constructor.
+ * <p>
+ * A command that does anything slow (reading files, formatting or
+ * exporting code, etc.) should say that it isn't EDT-safe. It is then run
+ * on a thread of its own, and the user can carry on typing while it runs.
+ *
+ * @author Joel Moniz
+ */
+public interface ReplCommand {
+
+  /**
+   * @return The command word, which must be a single word. A command word
+   * that is already taken is replaced.
+   */
+  public String getWord();
+
+  /**
+   * @return A detailed description of the command and its usage, shown by
+   * <code>help &lt;commandword&gt;</code>
+   */
+  public String getHelp();
+
+  /**
+   * @return True if the command can be entered while the user is in the
+   * midst of entering a statement block
+   */
+  public boolean isAllowedInBlock();
+
+  /**
+   * @return True if {@link #run(String, String[], ReplCommandContext)} is
+   * quick, and can be called on the EDT. If false, it is called on a
+   * background thread instead, and must leave Swing well alone.
+   */
+  public boolean isEdtSafe();
+
+  /**
+   * Does whatever the command does.
+   * @param command The line the command was entered on, trimmed
+   * @param args The words of <code>command</code>, the first being the
+   * command word itself
+   * @param context What the command can get at in the REPL Console
+   * @return One of {@link CommandRegistry#NO_CHANGE},
+   * {@link CommandRegistry#RUN} or {@link CommandRegistry#REFRESH}
+   */
+  public int run(String command, String[] args, ReplCommandContext context);
+}
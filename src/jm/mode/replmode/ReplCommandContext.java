@@ -0,0 +1,52 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+/**
+ * What a {@link ReplCommand} can get at in the REPL Console while it runs.
+ * All of these may be called from any thread.
+ *
+ * @author Joel Moniz
+ */
+public interface ReplCommandContext {
+
+  /**
+   * Prints a message in the REPL Console, below the line the command was
+   * entered on.
+   * @param message The message
+   */
+  public void printMessage(String message);
+
+  /**
+   * @return The code of the REPL Console's sketch, as it was when the
+   * command was entered
+   */
+  public String getSketchCode();
+
+  /**
+   * @return The editor the REPL Console belongs to, or null if there isn't
+   * one. Anything done to it has to be done on the EDT.
+   */
+  public REPLEditor getEditor();
+}
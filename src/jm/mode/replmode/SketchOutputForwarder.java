@@ -0,0 +1,267 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+
+  Copyright (c) 2015 Joel Moniz
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+  USA.
+ */
+package jm.mode.replmode;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import javax.swing.Timer;
+
+import processing.app.Preferences;
+
+/**
+ * Forwards the output of the sketch VM to the PDE's console in batches,
+ * instead of a few bytes at a time. Output is read into a direct buffer and
+ * collected, and a timer writes out everything collected in one go every
+ * {@link #FLUSH_INTERVAL} milliseconds (about a frame), however much or
+ * little the sketch is printing.
+ * <p>
+ * A sketch that prints something on every frame could otherwise keep the
+ * console (and with it, the whole PDE) busy appending tiny bits of text. So
+ * once more than {@link #MAX_LINES_PREF} lines have been printed in a
+ * second, any more lines are thrown away until the second is up, and a
+ * note of how many there were is printed in their place once it is.
+ *
+ * @author Joel Moniz
+ */
+public class SketchOutputForwarder extends Thread {
+
+  /**
+   * Preference used to store the most lines of sketch output forwarded each
+   * second. 0 means no limit.
+   */
+  public static final String MAX_LINES_PREF = "repl.output.max_lines";
+
+  public static final int DEFAULT_MAX_LINES = 500;
+
+  /**
+   * Longest time (in milliseconds) output is held back for
+   */
+  static final int FLUSH_INTERVAL = 16;
+
+  static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The sketch VM's output
+   */
+  ReadableByteChannel in;
+
+  /**
+   * Where the output is forwarded to
+   */
+  PrintStream out;
+
+  /**
+   * What has been read, but not yet looked at
+   */
+  ByteBuffer readBuffer;
+
+  /**
+   * Output waiting to be forwarded
+   */
+  byte[] batch;
+
+  int batchLength;
+
+  /**
+   * Most lines forwarded each second
+   */
+  int maxLines;
+
+  /**
+   * Start (from {@link System#nanoTime()}) of the current second
+   */
+  long secondStart;
+
+  /**
+   * Lines started in the current second
+   */
+  int linesThisSecond;
+
+  /**
+   * Lines thrown away in the current second
+   */
+  int suppressedLines;
+
+  /**
+   * Whether the line currently being read is being thrown away
+   */
+  boolean isSuppressingLine;
+
+  /**
+   * Whether the next byte read starts a new line
+   */
+  boolean isAtLineStart;
+
+  /**
+   * Writes out the batch every {@link #FLUSH_INTERVAL} milliseconds
+   */
+  Timer flushTimer;
+
+  public SketchOutputForwarder(String name, InputStream in, PrintStream out) {
+    super(name);
+    this.in = Channels.newChannel(in);
+    this.out = out;
+    readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    batch = new byte[BUFFER_SIZE];
+    batchLength = 0;
+    maxLines = getMaxLines();
+    secondStart = System.nanoTime();
+    linesThisSecond = 0;
+    suppressedLines = 0;
+    isSuppressingLine = false;
+    isAtLineStart = true;
+    flushTimer = new Timer(FLUSH_INTERVAL, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        flushBatch();
+      }
+    });
+  }
+
+  /**
+   * @return The most lines of sketch output forwarded each second, or 0 if
+   * there's no limit
+   */
+  static int getMaxLines() {
+    try {
+      return Math.max(0, Preferences.getInteger(MAX_LINES_PREF));
+    } catch (NumberFormatException e) {
+      return DEFAULT_MAX_LINES;
+    }
+  }
+
+  public void run() {
+    flushTimer.start();
+    try {
+      while (in.read(readBuffer) != -1) {
+        readBuffer.flip();
+        collect(readBuffer);
+        readBuffer.clear();
+      }
+    } catch (IOException e) {
+      // The sketch VM has gone away
+    } finally {
+      flushTimer.stop();
+      synchronized (this) {
+        if (suppressedLines != 0) {
+          printSuppressed();
+        }
+        flush();
+      }
+    }
+  }
+
+  /**
+   * Writes out everything collected so far, along with the note of how
+   * many lines were thrown away once the second they were thrown away in
+   * is up. Called by the timer.
+   */
+  synchronized void flushBatch() {
+    if (suppressedLines != 0
+        && System.nanoTime() - secondStart >= 1000000000L) {
+      printSuppressed();
+      secondStart = System.nanoTime();
+      linesThisSecond = 0;
+    }
+    flush();
+  }
+
+  /**
+   * Moves what has been read into the batch, line by line, leaving out
+   * whatever lines are over the limit
+   */
+  private synchronized void collect(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      if (isAtLineStart) {
+        startLine();
+      }
+      byte b = buffer.get();
+      if (!isSuppressingLine) {
+        append(b);
+      }
+      isAtLineStart = (b == '\n');
+    }
+  }
+
+  /**
+   * Decides whether the line about to be read is forwarded or thrown away
+   */
+  private void startLine() {
+    isAtLineStart = false;
+    if (maxLines == 0) {
+      isSuppressingLine = false;
+      return;
+    }
+    long now = System.nanoTime();
+    if (now - secondStart >= 1000000000L) {
+      if (suppressedLines != 0) {
+        printSuppressed();
+      }
+      secondStart = now;
+      linesThisSecond = 0;
+    }
+    linesThisSecond++;
+    isSuppressingLine = linesThisSecond > maxLines;
+    if (isSuppressingLine) {
+      suppressedLines++;
+    }
+  }
+
+  private void append(byte b) {
+    if (batchLength == batch.length) {
+      flush();
+    }
+    batch[batchLength++] = b;
+  }
+
+  /**
+   * Adds a note of how many lines were thrown away to the batch
+   */
+  private void printSuppressed() {
+    byte[] note = ("[" + suppressedLines + " lines suppressed]\n")
+        .getBytes(StandardCharsets.UTF_8);
+    suppressedLines = 0;
+    for (byte b : note) {
+      append(b);
+    }
+  }
+
+  /**
+   * Writes out everything in the batch, in one go
+   */
+  private void flush() {
+    if (batchLength != 0) {
+      out.write(batch, 0, batchLength);
+      out.flush();
+      batchLength = 0;
+    }
+  }
+}
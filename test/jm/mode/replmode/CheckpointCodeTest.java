@@ -0,0 +1,124 @@
+/*
+  An REPL/Live Coding Mode for Processing- https://github.com/joelmoniz/REPLmode
+  
+  A mode for Processing - http://processing.org
+  Developed during Google Summer of Code 2015
+  
+  Copyright (c) 2015 Joel Moniz
+  
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+  
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+  
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+  USA.
+ */
+package jm.mode.replmode;
+
+/**
+ * Checks that the code generated for the REPL Console's sketch can bring
+ * the sketch window back to how it was before an undo without restarting
+ * it (see {@link CommandList#CHECKPOINT_CODE}). That only works as long as
+ * nothing but <code>size()</code> draws on the canvas in
+ * <code>setup()</code>, and <code>draw()</code> hands the running sketch a
+ * new undo count after each undo, so both are checked here. Run with the
+ * <code>test</code> target; it stops at the first check that fails.
+ *
+ * @author Joel Moniz
+ */
+public class CheckpointCodeTest {
+
+  public static void main(String[] args) {
+    CommandList list = new CommandList(null);
+    list.init(200, 150);
+    list.addStatement("fill(255, 0, 0);");
+    list.addStatement("rect(10, 10, 50, 50);");
+    list.addStatement("ellipse(100, 100, 20, 20);");
+    String before = list.getREPLSketchCode();
+
+    check(list.undo(1) == 1, "one statement is undone");
+    String undone = list.getREPLSketchCode();
+
+    checkSetup(before);
+    checkSetup(undone);
+
+    String restore = getRestoreCall(undone);
+    check(restore.startsWith("replRestore(1, 200, 150, "),
+          "draw() hands over the new undo count and size: " + restore);
+    check(getRestoreCall(before).startsWith("replRestore(0, "),
+          "draw() hands over no undos before the undo");
+    check(!getDraw(undone).contains("ellipse("),
+          "the undone statement is gone from draw()");
+    check(getDraw(undone).contains("rect(10, 10, 50, 50);"),
+          "the other statements are still in draw()");
+    check(CommandList.getCodeVersion(before) 
+          != CommandList.getCodeVersion(undone),
+          "the code's version changes with the undo");
+
+    // The restore itself happens in the sketch, when the undo count changes
+    String checkpoint = CommandList.CHECKPOINT_CODE;
+    check(checkpoint.contains("undoCount != replUndoCount"),
+          "replRestore() looks for a new undo count");
+    check(checkpoint.indexOf("background(replBackground);") 
+          > checkpoint.indexOf("undoCount != replUndoCount"),
+          "replRestore() clears to the checkpointed background");
+    check(checkpoint.contains("replBackground = get(0, 0);"),
+          "replCheckpoint() keeps the colour of the blank canvas");
+    check(list.canRestoreCheckpoint(),
+          "a sketch with the default renderer can be restored");
+
+    check(list.redo(1) == 1, "the statement is redone");
+    String redone = list.getREPLSketchCode();
+    check(getRestoreCall(redone).startsWith("replRestore(1, "),
+          "a redo doesn't count as an undo");
+    check(getDraw(redone).contains("ellipse("),
+          "the redone statement is back in draw()");
+
+    list.init(200, 150, CommandList.SIZE_PDF);
+    check(!list.canRestoreCheckpoint(), "a PDF sketch can't be restored");
+
+    System.out.println("CheckpointCodeTest: all checks passed");
+  }
+
+  /**
+   * Checks that <code>setup()</code> holds nothing that draws, besides
+   * <code>size()</code>, and takes the checkpoint once the canvas is set up
+   */
+  static void checkSetup(String code) {
+    int start = code.indexOf("void setup() {");
+    String setup = code.substring(start, code.indexOf("}", start));
+    String[] lines = setup.split("\n");
+    check(lines[1].trim().startsWith("size("), 
+          "setup() starts with size(): " + lines[1]);
+    check(lines[2].trim().equals("replCheckpoint();"),
+          "setup() takes the checkpoint right after size(): " + lines[2]);
+    for (int i = 3; i < lines.length; i++) {
+      check(lines[i].trim().equals("replReportErrors();"),
+            "nothing else draws in setup(): " + lines[i]);
+    }
+  }
+
+  static String getDraw(String code) {
+    return code.substring(code.indexOf("void draw() {"));
+  }
+
+  static String getRestoreCall(String code) {
+    String draw = getDraw(code);
+    int start = draw.indexOf("replRestore(");
+    return draw.substring(start, draw.indexOf(';', start));
+  }
+
+  static void check(boolean condition, String what) {
+    if (!condition) {
+      throw new AssertionError("Failed: " + what);
+    }
+  }
+}